@@ -5,16 +5,27 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.util.Log;
 import android.view.View;
-import org.djvudroid.codec.DjvuContext;
-import org.djvudroid.codec.DjvuDocument;
-import org.djvudroid.codec.DjvuPage;
+import org.djvudroid.codec.CancellationToken;
+import org.djvudroid.codec.CodecContext;
+import org.djvudroid.codec.CodecDocument;
+import org.djvudroid.codec.CodecPage;
+import org.djvudroid.codec.RenderListener;
+import org.djvudroid.codec.PageInfo;
+import org.djvudroid.codec.PageInfoScanner;
+import org.djvudroid.codec.RenderPool;
+import org.djvudroid.utils.DocumentFingerprint;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Java front-end to the JNI classes for decoding DJVUs.
@@ -33,6 +44,25 @@ import java.util.concurrent.Future;
  * method, <code>decodeComplete</code>, which is passed the decoded
  * <code>Bitmap</code>.
  *
+ * <p> For deep zoom {@link decodeTile} renders a single {@link Tile}
+ * of a page instead of the whole page, so the cost follows the
+ * visible area rather than the zoom.  That only holds if {@link
+ * isTileRenderingSupported}, otherwise pages should be decoded at
+ * the zoom they are shown at.
+ *
+ * <p> Decodes run on a pool of worker threads, one less than the
+ * number of cores by default.  Pending decodes are taken by {@link
+ * Visibility} class first and distance from the viewport center
+ * second, see {@link updatePriority}.
+ *
+ * <p> {@link open} opens a document on a thread of its own, as
+ * telling documents apart reads from the file, and the document
+ * can only be decoded once the <code>OpenCallback</code> is told.
+ *
+ * <p> Once {@link setCacheDir} is called, renders are also kept on
+ * disk and a decode of something rendered before is read back from
+ * there.
+ *
  * <p> The public class variable <code>twoUp</code> modifies the
  * class's behavior by splitting each page in half along its vertical
  * centerline, effectively doubling the number of pages in the
@@ -43,24 +73,45 @@ import java.util.concurrent.Future;
 
 public class DecodeService
 {
-    private final DjvuContext djvuContext;
+    private final CodecContext codecContext;
 
     public boolean twoUp = false;
 
     private View containerView;
-    private DjvuDocument document;
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private volatile CodecDocument document;
+    private ContentResolver contentResolver;
+    private volatile String documentId;
+    private File cacheDir;
+    private PageInfoIndex pageInfoIndex;
+    private RenderCache renderCache;
+    private volatile PageInfo[] pageInfos;
+    private PageInfoCallback pageInfoCallback;
+    private final ThreadPoolExecutor executorService;
     public static final String DJVU_DROID = "DjvuDroid";
-    private final Map<Integer, Future<?>> decodingFutures = new ConcurrentHashMap<Integer, Future<?>>();
+    private static final String PAGE_INFO_DIR = "pageinfo";
+    private static final String RENDER_CACHE_DIR = "renders";
+    private static final long DEFAULT_RENDER_CACHE_BYTES = 32 * 1024 * 1024;
+    private long renderCacheMaxBytes = DEFAULT_RENDER_CACHE_BYTES;
+    private final Map<Object, DecodeFuture> decodingFutures = new ConcurrentHashMap<Object, DecodeFuture>();
+    private long submittedCount;
+    private int openCount;
 
-    public DecodeService()
+    public DecodeService(CodecContext codecContext)
     {
-        djvuContext = new DjvuContext();
+        this(codecContext, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public DecodeService(CodecContext codecContext, int threadCount)
+    {
+        this.codecContext = codecContext;
+        executorService = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
     }
 
     public void setContentResolver(ContentResolver contentResolver)
     {
-        djvuContext.setContentResolver(contentResolver);
+        this.contentResolver = contentResolver;
+        codecContext.setContentResolver(contentResolver);
     }
 
     public void setContainerView(View containerView)
@@ -68,47 +119,323 @@ public class DecodeService
         this.containerView = containerView;
     }
 
-    public void open(Uri fileUri)
+    /**
+     * Directory for what is kept about documents between runs, nothing is kept if it isn't set.
+     */
+    public void setCacheDir(File cacheDir)
     {
-        document = djvuContext.openDocument(fileUri);
+        if (cacheDir.equals(this.cacheDir))
+        {
+            // every activity sets it again on the service they share
+            return;
+        }
+        this.cacheDir = cacheDir;
+        pageInfoIndex = new PageInfoIndex(new File(cacheDir, PAGE_INFO_DIR));
+        if (renderCache != null)
+        {
+            renderCache.close();
+        }
+        renderCache = new RenderCache(new File(cacheDir, RENDER_CACHE_DIR), renderCacheMaxBytes);
     }
 
-    public void decodePage(int pageNum, final DecodeCallback decodeCallback, float zoom)
+    /**
+     * Disk budget of rendered pages and tiles, they are kept across runs so pages seen before show up without a decode.
+     * May be set before or after {@link #setCacheDir}.
+     */
+    public void setRenderCacheMaxBytes(long maxBytes)
     {
-        final DecodeTask decodeTask = new DecodeTask(pageNum, decodeCallback, zoom);
-        synchronized (decodingFutures)
+        renderCacheMaxBytes = maxBytes;
+        if (renderCache != null)
+        {
+            renderCache.setMaxBytes(maxBytes);
+        }
+    }
+
+    public void setPageInfoCallback(PageInfoCallback pageInfoCallback)
+    {
+        this.pageInfoCallback = pageInfoCallback;
+    }
+
+    /**
+     * Stops the decodes of the document open before right away and opens the new one in the background, where its
+     * fingerprint is taken. Opening another document before <code>openCallback</code> is told drops this one.
+     */
+    public void open(final Uri fileUri, final OpenCallback openCallback)
+    {
+        final int openNumber;
+        synchronized (this)
         {
-            final Future<?> future = executorService.submit(new Runnable()
+            if (document != null)
             {
-                public void run()
+                stopDecodingAllPages();
+                document.recycle();
+                Log.d(DJVU_DROID, RenderPool.getInstance().toString());
+                RenderPool.getInstance().clear();
+            }
+            setDocument(null, null);
+            pageInfos = null;
+            openNumber = ++openCount;
+        }
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                final long start = System.currentTimeMillis();
+                final String openedDocumentId = DocumentFingerprint.fingerprintFor(contentResolver, fileUri);
+                Log.d(DJVU_DROID, "Fingerprint took " + (System.currentTimeMillis() - start) + " ms");
+                final CodecDocument openedDocument;
+                synchronized (codecContext)
                 {
-                    try
-                    {
-                        performDecode(decodeTask);
-                    }
-                    catch (IOException e)
+                    openedDocument = codecContext.openDocument(fileUri, openedDocumentId);
+                }
+                synchronized (DecodeService.this)
+                {
+                    if (openNumber != openCount)
                     {
-                        Log.e(DJVU_DROID, "Decode fail", e);
+                        openedDocument.recycle();
+                        return;
                     }
+                    setDocument(openedDocument, openedDocumentId);
+                    loadPageInfos(fileUri);
                 }
-            });
-            final Future<?> removed = decodingFutures.put(pageNum, future);
+                openCallback.documentOpened();
+            }
+        }).start();
+    }
+
+    /**
+     * The document decodes are of and the key for what is kept about it, set once it is opened.
+     */
+    void setDocument(CodecDocument document, String documentId)
+    {
+        this.document = document;
+        this.documentId = documentId;
+    }
+
+    /**
+     * Page infos of a document seen before are there as soon as it is open, others are scanned in the background and
+     * {@link PageInfoCallback} is told when they arrive.
+     */
+    private void loadPageInfos(final Uri fileUri)
+    {
+        pageInfos = null;
+        if (pageInfoIndex == null)
+        {
+            return;
+        }
+        final String scannedDocumentId = documentId;
+        pageInfos = pageInfoIndex.load(scannedDocumentId);
+        if (pageInfos != null)
+        {
+            return;
+        }
+        final Thread scanThread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                final PageInfo[] scannedPageInfos = scanPageInfos(fileUri);
+                if (scannedPageInfos == null)
+                {
+                    return;
+                }
+                pageInfoIndex.save(scannedDocumentId, scannedPageInfos);
+                if (!scannedDocumentId.equals(documentId))
+                {
+                    return;
+                }
+                pageInfos = scannedPageInfos;
+                if (pageInfoCallback != null)
+                {
+                    pageInfoCallback.pageInfoLoaded();
+                }
+            }
+        });
+        scanThread.setPriority(Thread.MIN_PRIORITY);
+        scanThread.start();
+    }
+
+    private PageInfo[] scanPageInfos(Uri fileUri)
+    {
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = contentResolver.openInputStream(fileUri);
+            if (!(inputStream instanceof FileInputStream))
+            {
+                return null;
+            }
+            final long start = System.currentTimeMillis();
+            final PageInfo[] scannedPageInfos = PageInfoScanner.scan(((FileInputStream) inputStream).getChannel());
+            Log.d(DJVU_DROID, "Page info scan took " + (System.currentTimeMillis() - start) + " ms");
+            return scannedPageInfos;
+        }
+        catch (IOException e)
+        {
+            Log.w(DJVU_DROID, "Can't scan page info", e);
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            // a malformed directory can throw from the decoder, which must not take the scanning thread and the app down
+            Log.w(DJVU_DROID, "Can't scan page info", e);
+            return null;
+        }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    Log.w(DJVU_DROID, "Can't close " + fileUri, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return null until the page infos are loaded, or if the document layout can't be scanned
+     */
+    public PageInfo getPageInfo(int pageNumber)
+    {
+        final PageInfo[] currentPageInfos = pageInfos;
+        return currentPageInfos != null && pageNumber < currentPageInfos.length ? currentPageInfos[pageNumber] : null;
+    }
+
+    /**
+     * Aspect ratio of a displayed page, half a document page in twoUp mode, or null if its page info isn't known.
+     */
+    public Float getPageAspectRatio(int pageIndex)
+    {
+        final PageInfo pageInfo = getPageInfo(twoUp ? pageIndex / 2 : pageIndex);
+        if (pageInfo == null)
+        {
+            return null;
+        }
+        return twoUp ? pageInfo.getAspectRatio() / 2 : pageInfo.getAspectRatio();
+    }
+
+    /**
+     * Key for anything kept about the open document, it follows the document's content rather than its uri, except for
+     * documents that aren't local files, which are keyed by their uri. Null while a document is being opened.
+     */
+    public String getDocumentId()
+    {
+        return documentId;
+    }
+
+    /**
+     * Whether the codec renders a tile for the cost of the tile. The shipped native library can only render whole
+     * pages, so there every tile would cost a render of the whole page at the tile's zoom.
+     */
+    public boolean isTileRenderingSupported()
+    {
+        return codecContext.isRegionRenderingSupported();
+    }
+
+    public void decodePage(int pageNum, final DecodeCallback decodeCallback, float zoom)
+    {
+        decodePage(pageNum, decodeCallback, zoom, Visibility.VISIBLE, 0);
+    }
+
+    public void decodePage(int pageNum, final DecodeCallback decodeCallback, float zoom, Visibility visibility, int distance)
+    {
+        submit(new DecodeTask(pageNum, pageNum, decodeCallback, zoom, null), visibility, distance);
+    }
+
+    public void decodeTile(Tile tile, final DecodeCallback decodeCallback)
+    {
+        decodeTile(tile, decodeCallback, Visibility.VISIBLE, 0);
+    }
+
+    public void decodeTile(Tile tile, final DecodeCallback decodeCallback, Visibility visibility, int distance)
+    {
+        submit(new DecodeTask(tile, tile.getPageIndex(), decodeCallback, tile.getZoom(), tile), visibility, distance);
+    }
+
+    private void submit(final DecodeTask decodeTask, Visibility visibility, int distance)
+    {
+        synchronized (decodingFutures)
+        {
+            final DecodeFuture future = new DecodeFuture(decodeTask, visibility, distance, submittedCount++);
+            final DecodeFuture removed = decodingFutures.put(decodeTask.key, future);
             if (removed != null)
             {
-                removed.cancel(false);
+                cancel(removed);
+            }
+            executorService.execute(future);
+        }
+    }
+
+    /**
+     * Reorders a pending page decode, meant to be called as the viewport moves.
+     */
+    public void updatePriority(int pageNum, Visibility visibility, int distance)
+    {
+        updateTaskPriority(pageNum, visibility, distance);
+    }
+
+    public void updatePriority(Tile tile, Visibility visibility, int distance)
+    {
+        updateTaskPriority(tile, visibility, distance);
+    }
+
+    private void updateTaskPriority(Object key, Visibility visibility, int distance)
+    {
+        synchronized (decodingFutures)
+        {
+            final DecodeFuture future = decodingFutures.get(key);
+            if (future == null || future.visibility == visibility && future.distance == distance)
+            {
+                return;
+            }
+            // the queue only orders on insertion, a queued decode has to be taken out and put back
+            final boolean queued = executorService.remove(future);
+            future.visibility = visibility;
+            future.distance = distance;
+            if (queued)
+            {
+                executorService.execute(future);
             }
         }
     }
 
+    private void stopDecodingAllPages()
+    {
+        for (Object key : decodingFutures.keySet())
+        {
+            stopDecodingTask(key);
+        }
+    }
+
     public void stopDecoding(int pageNum)
     {
-        final Future<?> future = decodingFutures.remove(pageNum);
+        stopDecodingTask(pageNum);
+    }
+
+    public void stopDecoding(Tile tile)
+    {
+        stopDecodingTask(tile);
+    }
+
+    private void stopDecodingTask(Object key)
+    {
+        final DecodeFuture future = decodingFutures.remove(key);
         if (future != null)
         {
-            future.cancel(false);
+            cancel(future);
         }
     }
 
+    private void cancel(DecodeFuture future)
+    {
+        future.cancel(false);
+        executorService.remove(future);
+    }
+
     private void performDecode(DecodeTask currentDecodeTask)
             throws IOException
     {
@@ -117,15 +444,41 @@ public class DecodeService
             Log.d(DJVU_DROID, "Skipping decode task for page " + currentDecodeTask.pageNumber);
             return;
         }
+        // open() may swap the document meanwhile, the page must go back to the one it came from
+        final CodecDocument currentDocument = document;
+        if (currentDocument == null)
+        {
+            // closed by open(), which stopped this task too
+            return;
+        }
+        final Bitmap cachedBitmap = renderCache != null ? renderCache.get(getRenderKey(currentDecodeTask)) : null;
+        if (cachedBitmap != null)
+        {
+            Log.d(DJVU_DROID, "Render of page " + currentDecodeTask.pageNumber + " read from cache");
+            updateImage(currentDecodeTask, cachedBitmap);
+            finishTask(currentDecodeTask);
+            return;
+        }
         Log.d(DJVU_DROID, "Starting decode of page: " + currentDecodeTask.pageNumber);
-        DjvuPage vuPage;
+        CodecPage vuPage;
         if (!twoUp) {
-            vuPage = document.getPage(currentDecodeTask.pageNumber);
+            vuPage = currentDocument.getPage(currentDecodeTask.pageNumber);
         } else {
-            vuPage = document.getPage(currentDecodeTask.pageNumber / 2);
+            vuPage = currentDocument.getPage(currentDecodeTask.pageNumber / 2);
+        }
+        try
+        {
+            renderDecodedPage(currentDecodeTask, vuPage);
         }
-        preloadNextPage(currentDecodeTask.pageNumber);
+        finally
+        {
+            currentDocument.releasePage(vuPage);
+        }
+    }
 
+    private void renderDecodedPage(DecodeTask currentDecodeTask, CodecPage vuPage)
+            throws IOException
+    {
         while (vuPage.isDecoding())
         {
             if (isTaskDead(currentDecodeTask))
@@ -141,28 +494,213 @@ public class DecodeService
         Log.d(DJVU_DROID, "Start converting map to bitmap");
         float scale = calculateScale(vuPage) * currentDecodeTask.zoom;
         final Bitmap bitmap;
-        if (!twoUp) {
-            bitmap = vuPage.renderBitmap(getScaledWidth(vuPage, scale), getScaledHeight(vuPage, scale));
+        if (currentDecodeTask.tile != null) {
+            bitmap = renderTile(vuPage, currentDecodeTask, scale);
+        } else if (!twoUp) {
+            final int width = getScaledWidth(vuPage, scale);
+            final int height = getScaledHeight(vuPage, scale);
+            bitmap = renderPageBitmap(vuPage, width, height, 0, width, height, currentDecodeTask,
+                                      createRenderListener(currentDecodeTask));
         } else {
-            final Bitmap full_page_bitmap = vuPage.renderBitmap(2*getScaledWidth(vuPage, scale), getScaledHeight(vuPage, scale));
-            bitmap = Bitmap.createBitmap(full_page_bitmap, (currentDecodeTask.pageNumber % 2) * getScaledWidth(vuPage, scale), 0,
-                                         getScaledWidth(vuPage, scale), getScaledHeight(vuPage, scale));
-	    full_page_bitmap.recycle();
+            final int width = getScaledWidth(vuPage, scale);
+            final int height = getScaledHeight(vuPage, scale);
+            final DecodeTask otherHalfTask = claimOtherHalf(currentDecodeTask);
+            if (otherHalfTask == null && codecContext.isRegionRenderingSupported()) {
+                // only the requested half of the double width page is rendered
+                bitmap = renderPageBitmap(vuPage, 2 * width, height, (currentDecodeTask.pageNumber % 2) * width, width, height,
+                                          currentDecodeTask, createRenderListener(currentDecodeTask));
+            } else {
+                // the whole double width page is rendered anyway
+                bitmap = renderHalves(vuPage, width, height, currentDecodeTask, otherHalfTask);
+            }
+        }
+        if (bitmap == null)
+        {
+            Log.d(DJVU_DROID, "Render of page " + currentDecodeTask.pageNumber + " cancelled, failed or empty");
+            if (!isTaskDead(currentDecodeTask))
+            {
+                // the caller still waits for it, it gets no bitmap
+                updateImage(currentDecodeTask, null);
+            }
+            finishTask(currentDecodeTask);
+            return;
         }
         Log.d(DJVU_DROID, "Converting map to bitmap finished");
         if (isTaskDead(currentDecodeTask))
         {
+            RenderPool.getInstance().recycleBitmap(bitmap);
             return;
         }
         finishDecoding(currentDecodeTask, bitmap);
     }
 
-    private int getScaledHeight(DjvuPage vuPage, float scale)
+    private Bitmap renderPageBitmap(CodecPage vuPage, int pageWidth, int pageHeight, int left, int width, int height,
+                                    CancellationToken cancellationToken, RenderListener renderListener)
+    {
+        final Bitmap bitmap = RenderPool.getInstance().obtainBitmap(width, height);
+        if (!vuPage.renderBitmap(pageWidth, pageHeight, left, 0, bitmap, cancellationToken, renderListener))
+        {
+            // never handed over, whatever it holds. Its bands of a failed render may be on screen until the caller
+            // hears of the failure, so then it's left to the garbage collector rather than pooled for another render
+            if (renderListener == null || cancellationToken.isCancelled())
+            {
+                RenderPool.getInstance().recycleBitmap(bitmap);
+            }
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * In twoUp mode both halves of a page are usually wanted at once. If the other half is still queued it's taken
+     * off the queue, so the page is rendered only once for both.
+     */
+    private DecodeTask claimOtherHalf(DecodeTask decodeTask)
+    {
+        synchronized (decodingFutures)
+        {
+            final DecodeFuture otherHalf = decodingFutures.get(decodeTask.pageNumber ^ 1);
+            if (otherHalf == null || otherHalf.decodeTask.tile != null || otherHalf.decodeTask.zoom != decodeTask.zoom
+                    || !executorService.remove(otherHalf))
+            {
+                return null;
+            }
+            return otherHalf.decodeTask;
+        }
+    }
+
+    /**
+     * Renders the double width page once into a buffer and copies the halves out of it, each straight into its own
+     * bitmap, so there's no double width bitmap.
+     * @param otherHalfTask the claimed other half, finished here, with no bitmap if the render fails, or null if only the
+     *                      requested half is wanted
+     */
+    private Bitmap renderHalves(CodecPage vuPage, int width, int height, final DecodeTask decodeTask,
+                                final DecodeTask otherHalfTask)
+    {
+        final RenderPool renderPool = RenderPool.getInstance();
+        final ByteBuffer pageBuffer = renderPool.obtainBuffer(2 * width * height * 2);
+        try
+        {
+            if (!vuPage.renderRegion(2 * width, height, 0, 0, 2 * width, height, pageBuffer, new CancellationToken()
+            {
+                public boolean isCancelled()
+                {
+                    return decodeTask.isCancelled() && (otherHalfTask == null || otherHalfTask.isCancelled());
+                }
+            }))
+            {
+                return null;
+            }
+            if (otherHalfTask != null && !isTaskDead(otherHalfTask))
+            {
+                final ByteBuffer halfBuffer = renderPool.obtainBuffer(width * height * 2);
+                try
+                {
+                    finishDecoding(otherHalfTask, copyHalf(pageBuffer, otherHalfTask.pageNumber % 2, width, height, halfBuffer));
+                }
+                finally
+                {
+                    renderPool.recycleBuffer(halfBuffer);
+                }
+            }
+            // nothing is needed from the page buffer afterwards, the last half is gathered within it
+            return copyHalf(pageBuffer, decodeTask.pageNumber % 2, width, height, pageBuffer);
+        }
+        finally
+        {
+            if (otherHalfTask != null)
+            {
+                if (!isTaskDead(otherHalfTask))
+                {
+                    // not handed its half above, its caller waits like the caller of the requested half does
+                    updateImage(otherHalfTask, null);
+                }
+                // the other half is off the queue, it must not stay registered whatever happens here
+                finishTask(otherHalfTask);
+            }
+            renderPool.recycleBuffer(pageBuffer);
+        }
+    }
+
+    /**
+     * Gathers the rows of one half of the double width page in <code>pageBuffer</code> at the start of
+     * <code>target</code> and copies them into a bitmap. <code>target</code> may be <code>pageBuffer</code> itself,
+     * as every row moves towards the start, over rows already gathered.
+     */
+    private static Bitmap copyHalf(ByteBuffer pageBuffer, int half, int width, int height, ByteBuffer target)
+    {
+        final byte[] row = new byte[width * 2];
+        final ByteBuffer source = pageBuffer.duplicate();
+        final ByteBuffer destination = target.duplicate();
+        source.clear();
+        destination.clear();
+        for (int y = 0; y < height; y++)
+        {
+            source.position((2 * y + half) * width * 2);
+            source.get(row);
+            destination.put(row);
+        }
+        destination.flip();
+        final Bitmap bitmap = RenderPool.getInstance().obtainBitmap(width, height);
+        bitmap.copyPixelsFromBuffer(destination);
+        return bitmap;
+    }
+
+    private RenderListener createRenderListener(DecodeTask decodeTask)
+    {
+        if (!(decodeTask.decodeCallback instanceof ProgressiveDecodeCallback))
+        {
+            return null;
+        }
+        final ProgressiveDecodeCallback decodeCallback = (ProgressiveDecodeCallback) decodeTask.decodeCallback;
+        return new RenderListener()
+        {
+            public void bandRendered(Bitmap bitmap, int renderedHeight)
+            {
+                decodeCallback.decodeProgress(bitmap, renderedHeight);
+            }
+        };
+    }
+
+    private Bitmap renderTile(CodecPage vuPage, DecodeTask decodeTask, float scale)
+    {
+        final Tile tile = decodeTask.tile;
+        final int pageWidth = getScaledWidth(vuPage, scale);
+        final int pageHeight = getScaledHeight(vuPage, scale);
+        final int width = Math.min(Tile.SIZE, pageWidth - tile.getLeft());
+        final int height = Math.min(Tile.SIZE, pageHeight - tile.getTop());
+        if (width <= 0 || height <= 0)
+        {
+            return null;
+        }
+        // in twoUp mode the tile lies in the left or right half of the rendered page
+        final int halfOffset = twoUp ? (tile.getPageIndex() % 2) * pageWidth : 0;
+        final RenderPool renderPool = RenderPool.getInstance();
+        final ByteBuffer buffer = renderPool.obtainBuffer(width * height * 2);
+        try
+        {
+            if (!vuPage.renderRegion(twoUp ? 2 * pageWidth : pageWidth, pageHeight, halfOffset + tile.getLeft(), tile.getTop(),
+                    width, height, buffer, decodeTask))
+            {
+                return null;
+            }
+            final Bitmap bitmap = renderPool.obtainBitmap(width, height);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        }
+        finally
+        {
+            renderPool.recycleBuffer(buffer);
+        }
+    }
+
+    private int getScaledHeight(CodecPage vuPage, float scale)
     {
         return (int) (scale * vuPage.getHeight());
     }
 
-    private int getScaledWidth(DjvuPage vuPage, float scale)
+    private int getScaledWidth(CodecPage vuPage, float scale)
     {
         if (!twoUp) {
             return (int) (scale * vuPage.getWidth());
@@ -171,7 +709,7 @@ public class DecodeService
         }
     }
 
-    private float calculateScale(DjvuPage djvuPage)
+    private float calculateScale(CodecPage djvuPage)
     {
         if (!twoUp) {
             return 1.0f * getTargetWidth() / djvuPage.getWidth();
@@ -180,46 +718,84 @@ public class DecodeService
         }
     }
 
+    /**
+     * Hands over a fully rendered bitmap, only those go to the render cache.
+     */
     private void finishDecoding(DecodeTask currentDecodeTask, Bitmap bitmap)
     {
+        if (renderCache != null)
+        {
+            renderCache.put(getRenderKey(currentDecodeTask), bitmap);
+        }
         updateImage(currentDecodeTask, bitmap);
-        stopDecoding(currentDecodeTask.pageNumber);
+        finishTask(currentDecodeTask);
     }
 
-    private void preloadNextPage(int pageNumber) throws IOException
+    /**
+     * Unlike {@link #stopDecodingTask} leaves alone a newer task submitted for the same key meanwhile.
+     */
+    private void finishTask(DecodeTask decodeTask)
     {
-        final int nextPage = pageNumber + (twoUp ? 2 : 1);
-        if (nextPage >= getPageCount())
+        final DecodeFuture future = decodingFutures.get(decodeTask.key);
+        if (future != null && future.decodeTask == decodeTask)
         {
-            return;
-        }
-        if (!twoUp) {
-            document.getPage(nextPage);
-        } else {
-            document.getPage(nextPage / 2);
+            decodingFutures.remove(decodeTask.key, future);
         }
     }
 
-    private void waitForDecode(DjvuPage vuPage)
+    private void waitForDecode(CodecPage vuPage)
     {
         vuPage.waitForDecode();
     }
 
-    private int getTargetWidth()
+    /**
+     * Everything a render depends on: document, displayed page, page layout, view width and zoom or tile.
+     */
+    private String getRenderKey(DecodeTask decodeTask)
+    {
+        final StringBuilder key = new StringBuilder(documentId).append('-').append(decodeTask.pageNumber)
+                .append(twoUp ? 'h' : 'p').append('-').append(getTargetWidth()).append('-');
+        if (decodeTask.tile == null)
+        {
+            return key.append(Integer.toHexString(Float.floatToIntBits(decodeTask.zoom))).toString();
+        }
+        final Tile tile = decodeTask.tile;
+        return key.append('t').append(Integer.toHexString(Float.floatToIntBits(tile.getZoom()))).append('-')
+                .append(tile.getLeft()).append('-').append(tile.getTop()).toString();
+    }
+
+    /**
+     * The width pages fit at zoom 1, the container view's.
+     */
+    int getTargetWidth()
     {
         return containerView.getWidth();
     }
 
     public int getEffectivePagesWidth()
     {
-        final DjvuPage page = document.getPage(0);
-        return getScaledWidth(page, calculateScale(page));
+        final CodecPage page = document.getPage(0);
+        try
+        {
+            return getScaledWidth(page, calculateScale(page));
+        }
+        finally
+        {
+            document.releasePage(page);
+        }
     }
 
     public int getEffectivePagesHeight()
     {
-        final DjvuPage page = document.getPage(0);
-        return getScaledHeight(page, calculateScale(page));
+        final CodecPage page = document.getPage(0);
+        try
+        {
+            return getScaledHeight(page, calculateScale(page));
+        }
+        finally
+        {
+            document.releasePage(page);
+        }
     }
 
     private void updateImage(final DecodeTask currentDecodeTask, Bitmap bitmap)
@@ -229,10 +805,8 @@ public class DecodeService
 
     private boolean isTaskDead(DecodeTask currentDecodeTask)
     {
-        synchronized (decodingFutures)
-        {
-            return !decodingFutures.containsKey(currentDecodeTask.pageNumber);
-        }
+        final DecodeFuture future = decodingFutures.get(currentDecodeTask.key);
+        return future == null || future.decodeTask != currentDecodeTask;
     }
 
     public int getPageCount()
@@ -244,22 +818,115 @@ public class DecodeService
         }
     }
 
-    private class DecodeTask
+    /**
+     * A task is its own cancellation token, so a stopped or superseded task stops rendering at the next band.
+     */
+    private class DecodeTask implements CancellationToken
     {
+        private final Object key;
         private final int pageNumber;
         private final float zoom;
         private final DecodeCallback decodeCallback;
+        private final Tile tile;
 
-        private DecodeTask(int pageNumber, DecodeCallback decodeCallback, float zoom)
+        private DecodeTask(Object key, int pageNumber, DecodeCallback decodeCallback, float zoom, Tile tile)
         {
+            this.key = key;
             this.pageNumber = pageNumber;
             this.decodeCallback = decodeCallback;
             this.zoom = zoom;
+            this.tile = tile;
+        }
+
+        public boolean isCancelled()
+        {
+            return isTaskDead(this);
+        }
+    }
+
+    /**
+     * Decode priority classes, most urgent first.
+     */
+    public enum Visibility
+    {
+        VISIBLE, NEAR_VISIBLE, PREFETCH, THUMBNAIL
+    }
+
+    private class DecodeFuture extends FutureTask<Object> implements Comparable<DecodeFuture>
+    {
+        private final DecodeTask decodeTask;
+        private final long sequence;
+        private Visibility visibility;
+        private int distance;
+
+        private DecodeFuture(final DecodeTask decodeTask, Visibility visibility, int distance, long sequence)
+        {
+            super(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        performDecode(decodeTask);
+                    }
+                    catch (IOException e)
+                    {
+                        Log.e(DJVU_DROID, "Decode fail", e);
+                    }
+                }
+            }, null);
+            this.decodeTask = decodeTask;
+            this.visibility = visibility;
+            this.distance = distance;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(DecodeFuture other)
+        {
+            if (visibility != other.visibility)
+            {
+                return visibility.compareTo(other.visibility);
+            }
+            if (distance != other.distance)
+            {
+                return distance < other.distance ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
         }
     }
 
+    public interface OpenCallback
+    {
+        /**
+         * Called from the opening thread once the document can be decoded.
+         */
+        void documentOpened();
+    }
+
+    public interface PageInfoCallback
+    {
+        /**
+         * Called from the scanning thread.
+         */
+        void pageInfoLoaded();
+    }
+
     public interface DecodeCallback
     {
+        /**
+         * @param bitmap null if there was nothing to render, like a tile beyond the edge of its page, or if the render
+         *               failed
+         */
         void decodeComplete(Bitmap bitmap);
     }
+
+    /**
+     * A callback that also shows a page while it's rendering. The bitmap passed to <code>decodeProgress</code> is
+     * still being drawn into; it's handed over with <code>decodeComplete</code>, or taken back by the service if the
+     * decode is stopped before that, to be drawn into by another render.
+     */
+    public interface ProgressiveDecodeCallback extends DecodeCallback
+    {
+        void decodeProgress(Bitmap bitmap, int decodedHeight);
+    }
 }
@@ -10,7 +10,9 @@ import android.widget.AdapterView;
 import android.widget.FrameLayout;
 import android.widget.ListView;
 import android.widget.TabHost;
+import org.djvudroid.codec.CodecContext;
 import org.djvudroid.presentation.BrowserAdapter;
+import org.djvudroid.presentation.ThumbnailLoader;
 import org.djvudroid.presentation.UriBrowserAdapter;
 
 import java.io.File;
@@ -37,6 +39,10 @@ public class DjvuBrowserActivity extends Activity
     };
     private UriBrowserAdapter recentAdapter;
     private ViewerPreferences viewerPreferences;
+    private static final String THUMBNAIL_DIR = "thumbnails";
+    //Reuse thumbnail codec in process cause native contexts are never freed
+    private static CodecContext thumbnailCodecContext;
+    private ThumbnailLoader thumbnailLoader;
 
     @Override
     public void onCreate(Bundle savedInstanceState)
@@ -44,6 +50,7 @@ public class DjvuBrowserActivity extends Activity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.browser);
         viewerPreferences = new ViewerPreferences(this);        
+        initThumbnailLoader();
         final ListView browseList = initBrowserListView();
         final ListView recentListView = initRecentListView();
         TabHost tabHost = (TabHost) findViewById(R.id.browserTabHost);
@@ -79,10 +86,28 @@ public class DjvuBrowserActivity extends Activity
         }
     }
 
+    private void initThumbnailLoader()
+    {
+        if (thumbnailCodecContext == null)
+        {
+            // thumbnails are only made of files, which are mapped, nothing is spooled for them
+            thumbnailCodecContext = DjvuViewerActivity.createCodecContext(this, null);
+            thumbnailCodecContext.setContentResolver(getContentResolver());
+        }
+        thumbnailLoader = new ThumbnailLoader(getContentResolver(), thumbnailCodecContext, new File(getCacheDir(), THUMBNAIL_DIR));
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        thumbnailLoader.shutdown();
+    }
+
     private ListView initBrowserListView()
     {
         final ListView listView = new ListView(this);
-        adapter = new BrowserAdapter(this);
+        adapter = new BrowserAdapter(this, thumbnailLoader);
         listView.setAdapter(adapter);
         listView.setOnItemClickListener(onItemClickListener);
         listView.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
@@ -92,7 +117,7 @@ public class DjvuBrowserActivity extends Activity
     private ListView initRecentListView()
     {
         ListView listView = new ListView(this);
-        recentAdapter = new UriBrowserAdapter();
+        recentAdapter = new UriBrowserAdapter(thumbnailLoader);
         listView.setAdapter(recentAdapter);
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener()
         {
@@ -3,68 +3,94 @@ package org.djvudroid;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
+import android.os.SystemClock;
 import android.view.*;
 import android.view.animation.Animation;
 import android.view.animation.ScaleAnimation;
 import android.widget.*;
+import org.djvudroid.codec.RenderPool;
 import org.djvudroid.events.ZoomListener;
 import org.djvudroid.models.ZoomModel;
+import org.djvudroid.views.PageContainer;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 import java.util.Iterator;
+import java.util.Set;
 
-public class DjvuDocumentView extends ScrollView implements ZoomListener
+public class DjvuDocumentView extends ScrollView implements ZoomListener, DecodeService.PageInfoCallback,
+        PageContainer.PageSource
 {
     private final ZoomModel zoomModel;
     private DecodeService decodeService;
-    private final Map<Integer, FrameLayout> pages = new HashMap<Integer, FrameLayout>();
-    private final Map<Integer, Bitmap> visiblePageNumToBitmap = new HashMap<Integer, Bitmap>();
-    private final Set<Integer> decodingPageNums = new HashSet<Integer>();
+    // pages have no views, the container lays them out and draws them from the table
+    private final PageTable pageTable = new PageTable();
+    private final PageContainer pageContainer;
     private boolean isInitialized = false;
     private int pageToGoTo;
     private float lastX;
     private VelocityTracker velocityTracker;
     private final Scroller scroller;
-    private final HashMap<Integer, Float> pageIndexToAspectRatio = new HashMap<Integer, Float>();
     private Animation.AnimationListener animationListener;
     private final Rect tempRect = new Rect();
-    private final HashMap<Integer,Bitmap> pendingBitmaps = new HashMap<Integer, Bitmap>();
+    private final Rect pageVisibleRect = new Rect();
+    private final Rect tileRect = new Rect();
+    private final Set<Tile> decodingTiles = new HashSet<Tile>();
+    // looks tiles up in decodingTiles and the cache, never goes into either
+    private final Tile probeTile = new Tile(0, BASE_ZOOM, 0, 0);
+    private final TileCache tileCache = new TileCache();
+    private static final float BASE_ZOOM = 1.0f;
+    private static final int PREFETCH_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int PREFETCH_MIN_AHEAD = 2;
+    private static final int PREFETCH_BEHIND = 1;
+    private static final int PREFETCH_LOOKAHEAD_MILLIS = 1000;
+    private float scrollVelocity;
+    private long lastScrollTime;
+    private boolean pageVisibilityUpdatePending;
+    private final Runnable pageVisibilityUpdate = new Runnable()
+    {
+        public void run()
+        {
+            pageVisibilityUpdatePending = false;
+            updatePageVisibility();
+        }
+    };
 
     public DjvuDocumentView(Context context, ZoomModel zoomModel)
     {
         super(context);
         this.zoomModel = zoomModel;
-        initLayout();
+        pageContainer = initLayout();
         setKeepScreenOn(true);
         scroller = new Scroller(getContext());
     }
 
     /**
-     * Use this function instead of visiblePageNumToBitmap.clear()
-     * in order to recyle the bitmaps contained in the hash.
+     * Recycles the bitmaps still shown or waiting to be, before the page table is dropped.
      */
-
-    private void clear_visiblePageNumToBitmap()
+    private void recyclePageBitmaps()
     {
-	Iterator iter = visiblePageNumToBitmap.values().iterator();
-	while (iter.hasNext()) {
-	    ((Bitmap) (iter.next())).recycle();
-	    iter.remove();
-	}
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
+        {
+            final Bitmap bitmap = pageTable.takeBitmap(pageNum, PageTable.SHOWN | PageTable.PENDING);
+            if (bitmap != null)
+            {
+                RenderPool.getInstance().recycleBitmap(bitmap);
+            }
+        }
     }
 
     public void setDecodeService(DecodeService decodeService)
     {
         this.decodeService = decodeService;
+        decodeService.setPageInfoCallback(this);
         if (isInitialized) {
             stopDecodingAllPages();
-            pages.clear();
-            clear_visiblePageNumToBitmap();
-            pageIndexToAspectRatio.clear();
-            getMainLayout().removeAllViews();
+            stopDecodingAllTiles();
+            stopPrefetching();
+            tileCache.clear();
+            recyclePageBitmaps();
+            pageTable.setPageCount(0);
+            pageContainer.setPageCount(0, 1.0f);
             isInitialized = false;
             init();
         }
@@ -76,49 +102,66 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
         {
             return;
         }
-        final LinearLayout linearLayout = getMainLayout();
-        final int width = decodeService.getEffectivePagesWidth();
-        final int height = decodeService.getEffectivePagesHeight();
-        for (int i = 0; i < decodeService.getPageCount(); i++)
-        {
-            addPageToMainLayoutIfNotAvailable(linearLayout, width, height, i);
+        pageContainer.setPageCount(decodeService.getPageCount(),
+                decodeService.getEffectivePagesWidth() * 1.0f / decodeService.getEffectivePagesHeight());
+        pageContainer.setLayout(getWidth(), zoomModel.getZoom());
+        pageTable.setPageCount(pageContainer.getPageCount());
+        for (int i = 0; i < pageContainer.getPageCount(); i++)
+        {
+            final Float aspectRatio = decodeService.getPageAspectRatio(i);
+            if (aspectRatio != null)
+            {
+                pageContainer.setAspectRatio(i, aspectRatio);
+            }
         }
         goToPageImpl(pageToGoTo);
         isInitialized = true;
+        requestPageVisibilityUpdate();
     }
 
-    private void addPageToMainLayoutIfNotAvailable(LinearLayout mainLayout, int width, int height, int pageIndex)
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh)
     {
-        if (pages.containsKey(pageIndex))
-        {
-            return;
-        }
-        final FrameLayout frameLayout = new FrameLayout(getContext());
-        frameLayout.setLayoutParams(new LayoutParams(width, height));
-        setAspectRatio(width, height, pageIndex);
-        frameLayout.addView(createPageNumView(pageIndex));
-        pages.put(pageIndex, frameLayout);
-        mainLayout.addView(frameLayout);
+        super.onSizeChanged(w, h, oldw, oldh);
+        pageContainer.setLayout(w, zoomModel.getZoom());
     }
 
-    private void setAspectRatio(int width, int height, int pageIndex)
+    public void pageInfoLoaded()
     {
-        pageIndexToAspectRatio.put(pageIndex, width * 1.0f / height);
+        post(new Runnable()
+        {
+            public void run()
+            {
+                applyPageInfos();
+            }
+        });
     }
 
-    private LinearLayout getMainLayout()
+    /**
+     * Pages laid out with the first page's size get their own, unless their bitmap already gave it.
+     */
+    private void applyPageInfos()
     {
-        return (LinearLayout) findViewWithTag(LinearLayout.class);
+        if (!isInitialized)
+        {
+            return;
+        }
+        for (int pageIndex = 0; pageIndex < pageContainer.getPageCount(); pageIndex++)
+        {
+            final Float aspectRatio = decodeService.getPageAspectRatio(pageIndex);
+            if (aspectRatio != null && !pageTable.is(pageIndex, PageTable.SHOWN))
+            {
+                pageContainer.setAspectRatio(pageIndex, aspectRatio);
+            }
+        }
     }
 
-    private LinearLayout initLayout()
+    private PageContainer initLayout()
     {
-        final LinearLayout linearLayout = new LinearLayout(getContext());
-        linearLayout.setOrientation(LinearLayout.VERTICAL);
-        linearLayout.setTag(LinearLayout.class);
-        linearLayout.setAnimationCacheEnabled(false);
-        addView(linearLayout);
-        return linearLayout;
+        final PageContainer container = new PageContainer(getContext(), tileCache);
+        container.setPageSource(this);
+        addView(container);
+        return container;
     }
 
     private void goToPageImpl(final int toPage)
@@ -127,7 +170,7 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
         {
             public void run()
             {
-                scrollTo(0, pages.get(toPage).getTop());
+                scrollTo(0, pageContainer.getPageTop(Math.min(toPage, pageContainer.getPageCount() - 1)));
             }
         });
     }
@@ -136,228 +179,572 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
     protected void onScrollChanged(int l, int t, int oldl, int oldt)
     {
         super.onScrollChanged(l, t, oldl, oldt);
+        updateScrollVelocity(t - oldt);
         // on scrollChanged can be called from scrollTo just after new layout applied so we should wait for relayout
-        post(new Runnable()
+        requestPageVisibilityUpdate();
+    }
+
+    /**
+     * Scrolls come in faster than frames during a fling, the update posted for the first one also covers the ones
+     * that come before it runs, which is after the next layout and draw.
+     */
+    private void requestPageVisibilityUpdate()
+    {
+        if (!pageVisibilityUpdatePending)
         {
-            public void run()
-            {
-                updatePageVisibility();
-            }
-        });
+            pageVisibilityUpdatePending = true;
+            post(pageVisibilityUpdate);
+        }
     }
 
     private void updatePageVisibility()
     {
         stopDecodingInvisiblePages();
+        stopDecodingInvisibleTiles();
         removeImageFromInvisiblePages();
         startDecodingVisiblePages();
+        prefetchPages();
+    }
+
+    /**
+     * Vertical scrolling, flings included, happens inside ScrollView so the velocity is taken from scroll deltas,
+     * in pixels per second, smoothed a bit as the deltas are noisy.
+     */
+    private void updateScrollVelocity(int deltaY)
+    {
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = now - lastScrollTime;
+        lastScrollTime = now;
+        if (elapsed <= 0 || deltaY == 0)
+        {
+            return;
+        }
+        final float velocity = deltaY * 1000.0f / elapsed;
+        // after a pause the direction may have changed, so the old velocity is not averaged in
+        scrollVelocity = elapsed > PREFETCH_LOOKAHEAD_MILLIS ? velocity : (scrollVelocity + velocity) / 2;
+    }
+
+    /**
+     * Renders pages around the visible ones ahead of time, more of them in the direction of travel the faster the
+     * user scrolls, as far as {@link #PREFETCH_MAX_BYTES} allows. Prefetches falling out of that window are cancelled
+     * and their bitmaps dropped.
+     */
+    private void prefetchPages()
+    {
+        if (!isInitialized)
+        {
+            return;
+        }
+        final int firstVisible = pageContainer.getPageAt(getScrollY());
+        final int lastVisible = pageContainer.getPageAt(getScrollY() + getHeight() - 1);
+        final int pageHeight = Math.max(1, pageContainer.getPageHeight(firstVisible));
+        final int pageWidth = Math.round(getWidth() * getPageZoom());
+        final int pageBytes = Math.max(1, 2 * pageWidth * Math.round(pageWidth / pageContainer.getAspectRatio(firstVisible)));
+        final int maxPages = Math.max(1, PREFETCH_MAX_BYTES / pageBytes);
+        final int travelled = Math.round(Math.abs(scrollVelocity) * PREFETCH_LOOKAHEAD_MILLIS / 1000 / pageHeight);
+        final int behind = Math.min(PREFETCH_BEHIND, maxPages - 1);
+        final int ahead = Math.min(PREFETCH_MIN_AHEAD + travelled, maxPages - behind);
+        final int first = Math.max(0, firstVisible - (scrollVelocity < 0 ? ahead : behind));
+        final int last = Math.min(pageContainer.getPageCount() - 1, lastVisible + (scrollVelocity < 0 ? behind : ahead));
+
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
+        {
+            if (pageNum >= first && pageNum <= last)
+            {
+                continue;
+            }
+            if (pageTable.is(pageNum, PageTable.PREFETCHING))
+            {
+                decodeService.stopDecoding(pageNum);
+                pageTable.clear(pageNum, PageTable.PREFETCHING);
+            }
+            final Bitmap prefetched = pageTable.takeBitmap(pageNum, PageTable.PREFETCHED);
+            if (prefetched != null)
+            {
+                RenderPool.getInstance().recycleBitmap(prefetched);
+            }
+        }
+        // closest pages first, those in the direction of travel before the ones behind
+        final int step = scrollVelocity < 0 ? -1 : 1;
+        for (int distance = 1; distance <= ahead; distance++)
+        {
+            prefetchPage((step > 0 ? lastVisible : firstVisible) + step * distance, first, last);
+            if (distance <= behind)
+            {
+                prefetchPage((step > 0 ? firstVisible : lastVisible) - step * distance, first, last);
+            }
+        }
+    }
+
+    private void prefetchPage(int pageNum, int first, int last)
+    {
+        if (pageNum < first || pageNum > last
+                || pageTable.is(pageNum, PageTable.SHOWN | PageTable.PREFETCHED | PageTable.DECODING | PageTable.PREFETCHING))
+        {
+            return;
+        }
+        pageTable.set(pageNum, PageTable.PREFETCHING);
+        decodeService.decodePage(pageNum, createPageDecodeCallback(pageNum), getPageZoom(), DecodeService.Visibility.PREFETCH,
+                getDistanceFromViewportCenter(pageNum, 0, 0, pageContainer.getPageWidth(), pageContainer.getPageHeight(pageNum)));
+    }
+
+    private void stopPrefetching()
+    {
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
+        {
+            if (pageTable.is(pageNum, PageTable.PREFETCHING))
+            {
+                decodeService.stopDecoding(pageNum);
+                pageTable.clear(pageNum, PageTable.PREFETCHING);
+            }
+            final Bitmap prefetched = pageTable.takeBitmap(pageNum, PageTable.PREFETCHED);
+            if (prefetched != null)
+            {
+                RenderPool.getInstance().recycleBitmap(prefetched);
+            }
+        }
     }
 
     private void startDecodingVisiblePages()
     {
-        startDecodingVisiblePages(false);
+        if (pageContainer.getPageCount() == 0)
+        {
+            return;
+        }
+        final int lastVisible = pageContainer.getPageAt(getScrollY() + getHeight() - 1);
+        for (int pageNum = pageContainer.getPageAt(getScrollY()); pageNum <= lastVisible; pageNum++)
+        {
+            if (!isPageVisible(pageNum))
+            {
+                continue;
+            }
+            if (!pageTable.is(pageNum, PageTable.SHOWN) || pageTable.is(pageNum, PageTable.STALE))
+            {
+                decodePage(pageNum, getDistanceFromViewportCenter(pageNum, 0, 0, pageContainer.getPageWidth(),
+                        pageContainer.getPageHeight(pageNum)));
+            }
+            if (isTiledMode())
+            {
+                decodeVisibleTiles(pageNum);
+            }
+        }
     }
 
-    private void startDecodingVisiblePages(boolean invalidate)
+    private void removeImageFromInvisiblePages()
     {
-        for (final Map.Entry<Integer, FrameLayout> pageNumToPage : pages.entrySet())
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
         {
-            final FrameLayout page = pageNumToPage.getValue();
-            if (isPageVisible(page))
+            if (pageTable.is(pageNum, PageTable.SHOWN) && !isPageVisible(pageNum))
+            {
+                final boolean stale = pageTable.is(pageNum, PageTable.STALE);
+                final Bitmap bitmap = removeImageFromPage(pageNum);
+                if (bitmap != null && stale)
+                {
+                    RenderPool.getInstance().recycleBitmap(bitmap);
+                }
+                else if (bitmap != null)
+                {
+                    // kept for scrolling back, prefetchPages() drops it once it is out of the prefetch window
+                    pageTable.putBitmap(pageNum, bitmap, PageTable.PREFETCHED);
+                }
+            }
+        }
+    }
+
+    private void stopDecodingInvisiblePages()
+    {
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
+        {
+            if (pageTable.is(pageNum, PageTable.DECODING) && !isPageVisible(pageNum))
+            {
+                stopDecodingPage(pageNum);
+            }
+        }
+    }
+
+    /**
+     * Distance of a rect given in page coordinates from the center of the viewport, used to order decodes.
+     */
+    private int getDistanceFromViewportCenter(int pageNum, int left, int top, int right, int bottom)
+    {
+        final int dx = (left + right) / 2 - (getScrollX() + getWidth() / 2);
+        final int dy = pageContainer.getPageTop(pageNum) + (top + bottom) / 2 - (getScrollY() + getHeight() / 2);
+        return Math.abs(dx) + Math.abs(dy);
+    }
+
+    private boolean isTiledMode()
+    {
+        return zoomModel.getZoom() > BASE_ZOOM && decodeService.isTileRenderingSupported();
+    }
+
+    /**
+     * Page bitmaps stay at base zoom when tiles cover the zoom. Codecs that can't render tiles without rendering
+     * the whole page get pages rendered at the current zoom instead, as then memory grows with the zoom either way.
+     */
+    private float getPageZoom()
+    {
+        return decodeService.isTileRenderingSupported() ? BASE_ZOOM : zoomModel.getZoom();
+    }
+
+    /**
+     * Above base zoom the page bitmap stays at base zoom and only the tiles around the visible part of the page are
+     * rendered, at the pyramid level of the current zoom, so memory doesn't grow with zoom.
+     */
+    private void decodeVisibleTiles(int pageNum)
+    {
+        if (!getPageVisibleRect(pageNum, pageVisibleRect))
+        {
+            return;
+        }
+        final float zoom = zoomModel.getZoom();
+        final float level = Tile.getLevel(zoom);
+        final float toLevel = level / zoom;
+        tempRect.set(pageVisibleRect);
+        tempRect.inset(-Tile.SIZE, -Tile.SIZE);
+        final int firstColumn = Math.max(0, Math.round(tempRect.left * toLevel) / Tile.SIZE);
+        final int lastColumn = Math.min((Math.round(pageContainer.getPageWidth() * toLevel) - 1) / Tile.SIZE, Math.round(tempRect.right * toLevel) / Tile.SIZE);
+        final int firstRow = Math.max(0, Math.round(tempRect.top * toLevel) / Tile.SIZE);
+        final int lastRow = Math.min((Math.round(pageContainer.getPageHeight(pageNum) * toLevel) - 1) / Tile.SIZE, Math.round(tempRect.bottom * toLevel) / Tile.SIZE);
+        for (int row = firstRow; row <= lastRow; row++)
+        {
+            for (int column = firstColumn; column <= lastColumn; column++)
             {
-                final Integer pageNum = pageNumToPage.getKey();
-                if (visiblePageNumToBitmap.containsKey(pageNum) && !invalidate)
+                final Tile probe = probeTile.set(pageNum, level, column, row);
+                if (tileCache.contains(probe))
                 {
                     continue;
                 }
-                decodePage(pageNum);
+                getTileLayoutRect(probe, tileRect);
+                final DecodeService.Visibility visibility =
+                        Rect.intersects(pageVisibleRect, tileRect) ? DecodeService.Visibility.VISIBLE : DecodeService.Visibility.NEAR_VISIBLE;
+                final int distance = getDistanceFromViewportCenter(pageNum, tileRect.left, tileRect.top, tileRect.right, tileRect.bottom);
+                if (decodingTiles.contains(probe))
+                {
+                    decodeService.updatePriority(probe, visibility, distance);
+                }
+                else
+                {
+                    decodeTile(new Tile(pageNum, level, column, row), visibility, distance);
+                }
             }
         }
     }
 
-    private void removeImageFromInvisiblePages()
+    private void decodeTile(final Tile tile, DecodeService.Visibility visibility, int distance)
     {
-        for (Integer visiblePageNum : new HashMap<Integer, Bitmap>(visiblePageNumToBitmap).keySet())
+        decodingTiles.add(tile);
+        decodeService.decodeTile(tile, new DecodeService.DecodeCallback()
         {
-            if (!isPageVisible(pages.get(visiblePageNum)))
+            public void decodeComplete(final Bitmap bitmap)
             {
-                removeImageFromPage(visiblePageNum);
+                post(new Runnable()
+                {
+                    public void run()
+                    {
+                        submitTile(tile, bitmap);
+                    }
+                });
             }
+        }, visibility, distance);
+    }
+
+    private void submitTile(Tile tile, Bitmap bitmap)
+    {
+        if (!decodingTiles.remove(tile))
+        {
+            recycleBitmap(bitmap);
+            return;
         }
+        if (bitmap == null)
+        {
+            // beyond the edge of the page, which the layout only knows roughly before the page is rendered
+            return;
+        }
+        // tiles of another level are still worth keeping, they're part of the pyramid
+        tileCache.put(tile, bitmap);
+        pageContainer.invalidateTile(tile);
     }
 
-    private void stopDecodingInvisiblePages()
+    private void stopDecodingInvisibleTiles()
     {
-        for (Integer decodingPageNum : new HashSet<Integer>(decodingPageNums))
+        for (Iterator<Tile> iterator = decodingTiles.iterator(); iterator.hasNext();)
         {
-            if (!isPageVisible(pages.get(decodingPageNum)))
+            final Tile tile = iterator.next();
+            if (!getPageVisibleRect(tile.getPageIndex(), tempRect) || !isTileNear(tile, tempRect))
             {
-                stopDecodingPage(decodingPageNum);
+                decodeService.stopDecoding(tile);
+                iterator.remove();
             }
         }
     }
 
+    private boolean isTileNear(Tile tile, Rect visibleRect)
+    {
+        if (tile.getZoom() != Tile.getLevel(zoomModel.getZoom()))
+        {
+            return false;
+        }
+        getTileLayoutRect(tile, tileRect);
+        visibleRect.inset(-Tile.SIZE, -Tile.SIZE);
+        return Rect.intersects(visibleRect, tileRect);
+    }
+
+    private void getTileLayoutRect(Tile tile, Rect rect)
+    {
+        final float toLayout = zoomModel.getZoom() / tile.getZoom();
+        rect.set(Math.round(tile.getLeft() * toLayout), Math.round(tile.getTop() * toLayout),
+                Math.round((tile.getLeft() + Tile.SIZE) * toLayout), Math.round((tile.getTop() + Tile.SIZE) * toLayout));
+    }
+
+    private void stopDecodingAllTiles()
+    {
+        for (Tile tile : decodingTiles)
+        {
+            decodeService.stopDecoding(tile);
+        }
+        decodingTiles.clear();
+    }
+
     private void stopDecodingAllPages()
     {
-        for (Integer decodingPageNum : new HashSet<Integer>(decodingPageNums))
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
         {
-            stopDecodingPage(decodingPageNum);
+            if (pageTable.is(pageNum, PageTable.DECODING))
+            {
+                stopDecodingPage(pageNum);
+            }
         }
     }
 
-    private void stopDecodingPage(Integer decodingPageNum)
+    private void stopDecodingPage(int decodingPageNum)
     {
         decodeService.stopDecoding(decodingPageNum);
         removeDecodingStatus(decodingPageNum);
+        if (pageTable.is(decodingPageNum, PageTable.PARTIAL))
+        {
+            // the service takes back the half rendered bitmap of a stopped decode, it must not stay on screen
+            pageTable.clearPartialBitmap(decodingPageNum);
+            pageContainer.invalidatePage(decodingPageNum);
+        }
     }
 
-    private void decodePage(final Integer pageNum)
+    private void decodePage(final int pageNum, int distance)
     {
-        if (decodingPageNums.contains(pageNum))
+        if (pageTable.is(pageNum, PageTable.DECODING))
         {
+            decodeService.updatePriority(pageNum, DecodeService.Visibility.VISIBLE, distance);
             return;
         }
-        addPageToMainLayoutIfNotAvailable(getMainLayout(), getWidth(), getHeight(), pageNum);
+        final Bitmap prefetched = pageTable.takeBitmap(pageNum, PageTable.PREFETCHED);
+        if (prefetched != null)
+        {
+            submitBitmap(pageNum, prefetched);
+            return;
+        }
+        if (pageContainer.getPageCount() == 0)
+        {
+            // the first page is decoded before the document is laid out, meanwhile it is sized like the screen
+            pageContainer.setPageCount(1, getWidth() * 1.0f / getHeight());
+            pageContainer.setLayout(getWidth(), zoomModel.getZoom());
+            pageTable.setPageCount(1);
+        }
         setDecodingStatus(pageNum);
-        decodeService.decodePage(pageNum, new DecodeService.DecodeCallback()
+        if (pageTable.is(pageNum, PageTable.PREFETCHING))
+        {
+            pageTable.clear(pageNum, PageTable.PREFETCHING);
+            decodeService.updatePriority(pageNum, DecodeService.Visibility.VISIBLE, distance);
+            return;
+        }
+        decodeService.decodePage(pageNum, createPageDecodeCallback(pageNum), getPageZoom(), DecodeService.Visibility.VISIBLE, distance);
+    }
+
+    private DecodeService.DecodeCallback createPageDecodeCallback(final int pageNum)
+    {
+        final DecodeService.DecodeCallback decodeCallback = new DecodeService.ProgressiveDecodeCallback()
         {
+            public void decodeProgress(final Bitmap bitmap, int decodedHeight)
+            {
+                final Object decode = this;
+                post(new Runnable()
+                {
+                    public void run()
+                    {
+                        // a stopped render's bitmap may already be drawn into by the page's next one
+                        if (pageTable.is(pageNum, PageTable.DECODING) && !pageTable.is(pageNum, PageTable.PREFETCHING)
+                                && pageTable.isDecode(pageNum, decode))
+                        {
+                            showPartialBitmap(pageNum, bitmap);
+                        }
+                    }
+                });
+            }
+
             public void decodeComplete(final Bitmap bitmap)
             {
                 post(new Runnable()
                 {
                     public void run()
                     {
-                        submitBitmap(pageNum, bitmap);
+                        if (bitmap == null)
+                        {
+                            renderFailed(pageNum);
+                        }
+                        else if (pageTable.is(pageNum, PageTable.PREFETCHING))
+                        {
+                            pageTable.clear(pageNum, PageTable.PREFETCHING);
+                            recycleBitmap(pageTable.putBitmap(pageNum, bitmap, PageTable.PREFETCHED));
+                        }
+                        else if (pageTable.is(pageNum, PageTable.DECODING))
+                        {
+                            submitBitmap(pageNum, bitmap);
+                        }
+                        else
+                        {
+                            // cancelled while finishing
+                            RenderPool.getInstance().recycleBitmap(bitmap);
+                        }
                     }
                 });
             }
-        }, zoomModel.getZoom());
+        };
+        pageTable.setDecode(pageNum, decodeCallback);
+        return decodeCallback;
     }
 
-    private void setDecodingStatus(Integer pageNum)
+    /**
+     * The page keeps what it shows, it's asked for again when it next comes into view.
+     */
+    private void renderFailed(int pageNum)
     {
-        if (!decodingPageNums.contains(pageNum) && pages.containsKey(pageNum) && !visiblePageNumToBitmap.containsKey(pageNum))
+        pageTable.clear(pageNum, PageTable.PREFETCHING);
+        if (pageTable.is(pageNum, PageTable.PARTIAL))
         {
-            final ProgressBar bar = new ProgressBar(getContext());
-            bar.setIndeterminate(true);
-            bar.setLayoutParams(new LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
-            bar.setTag(ProgressBar.class);
-            pages.get(pageNum).addView(bar);
+            pageTable.clearPartialBitmap(pageNum);
+            pageContainer.invalidatePage(pageNum);
         }
-        decodingPageNums.add(pageNum);
+        removeDecodingStatus(pageNum);
     }
 
-    private void removeDecodingStatus(Integer decodingPageNum)
+    /**
+     * Shows a page while it's rendering, the bitmap is shared with the render and gets filled in band by band.
+     */
+    private void showPartialBitmap(int pageNum, Bitmap bitmap)
     {
-        if (decodingPageNums.contains(decodingPageNum) && pages.containsKey(decodingPageNum))
+        if (isAnimationRunning())
         {
-            final FrameLayout page = pages.get(decodingPageNum);
-            page.removeView(page.findViewWithTag(ProgressBar.class));
+            return;
         }
-        decodingPageNums.remove(decodingPageNum);
+        pageTable.setPartialBitmap(pageNum, bitmap);
+        pageContainer.invalidatePage(pageNum);
     }
 
-    private boolean isPageVisible(FrameLayout page)
+    private void setDecodingStatus(int pageNum)
     {
-        return page.getGlobalVisibleRect(tempRect);
+        if (!pageTable.is(pageNum, PageTable.DECODING))
+        {
+            pageTable.set(pageNum, PageTable.DECODING);
+            pageContainer.invalidatePage(pageNum);
+        }
     }
 
-    private void submitBitmap(final Integer pageNum, final Bitmap bitmap)
+    private void removeDecodingStatus(int decodingPageNum)
     {
-        if (isAnimationRunning())
+        if (pageTable.is(decodingPageNum, PageTable.DECODING))
         {
-            final Bitmap oldBitmap = pendingBitmaps.put(pageNum, bitmap);
-            if (oldBitmap != null)
-            {
-                oldBitmap.recycle();
-            }
-            return;
+            pageTable.clear(decodingPageNum, PageTable.DECODING);
+            pageTable.setDecode(decodingPageNum, null);
+            pageContainer.invalidatePage(decodingPageNum);
         }
-        addImageToPage(pageNum, bitmap);
-        removeDecodingStatus(pageNum);
     }
 
-    private void submitPendingBitmaps()
+    public Bitmap getPageBitmap(int pageIndex)
     {
-        for (Map.Entry<Integer, Bitmap> pageBitmapEntry : pendingBitmaps.entrySet())
-        {
-            submitBitmap(pageBitmapEntry.getKey(), pageBitmapEntry.getValue());
-        }
-        pendingBitmaps.clear();
+        return pageTable.getDrawnBitmap(pageIndex);
     }
 
-    private boolean isAnimationRunning()
+    public boolean isDecoding(int pageIndex)
     {
-        return getMainLayout().getAnimation() != null;
+        return pageTable.is(pageIndex, PageTable.DECODING);
     }
 
-    private void addImageToPage(Integer pageNum, final Bitmap bitmap)
+    private boolean isPageVisible(int pageNum)
     {
-        init();
-        final FrameLayout page = pages.get(pageNum);
-        ImageView imageView = (ImageView) page.findViewWithTag(ImageView.class);
-        if (imageView == null)
+        return getPageVisibleRect(pageNum, tempRect);
+    }
+
+    /**
+     * The part of a page within the viewport, in page coordinates, from the layout alone so it works for pages
+     * not laid out yet.
+     */
+    private boolean getPageVisibleRect(int pageNum, Rect rect)
+    {
+        if (pageNum >= pageContainer.getPageCount())
         {
-            imageView = createImageView(bitmap);
-            page.addView(imageView);
+            return false;
         }
-        else
+        final int pageTop = pageContainer.getPageTop(pageNum);
+        rect.set(0, 0, pageContainer.getPageWidth(), pageContainer.getPageHeight(pageNum));
+        return rect.intersect(getScrollX(), getScrollY() - pageTop, getScrollX() + getWidth(), getScrollY() - pageTop + getHeight());
+    }
+
+    private void submitBitmap(final int pageNum, final Bitmap bitmap)
+    {
+        if (isAnimationRunning())
         {
-            imageView.setImageBitmap(bitmap);
+            recycleBitmap(pageTable.putBitmap(pageNum, bitmap, PageTable.PENDING));
+            return;
         }
-        setPageSize(pageNum, bitmap);
-        final Bitmap oldBitmap = visiblePageNumToBitmap.put(pageNum, bitmap);
-        if (oldBitmap != null)
+        addImageToPage(pageNum, bitmap);
+        removeDecodingStatus(pageNum);
+    }
+
+    private void submitPendingBitmaps()
+    {
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
         {
-            oldBitmap.recycle();
+            final Bitmap bitmap = pageTable.takeBitmap(pageNum, PageTable.PENDING);
+            if (bitmap != null)
+            {
+                submitBitmap(pageNum, bitmap);
+            }
         }
     }
 
-    private void setPageSize(Integer pageNum, Bitmap bitmap)
+    private static void recycleBitmap(Bitmap bitmap)
     {
-        setAspectRatio(bitmap.getWidth(), bitmap.getHeight(), pageNum);
-        if (getMainLayout().getAnimation() == null)
+        if (bitmap != null)
         {
-            setPageSizeByAspectRatio(pageNum);
+            RenderPool.getInstance().recycleBitmap(bitmap);
         }
     }
 
-    private void setPageSizeByAspectRatio(Integer pageNum)
+    private boolean isAnimationRunning()
     {
-        setPageSizeByAspectRatio(getWidth(), pages.get(pageNum), pageNum, zoomModel.getZoom(), null, 0);
+        return pageContainer.getAnimation() != null;
     }
 
-    private void removeImageFromPage(Integer fromPage)
+    private void addImageToPage(int pageNum, final Bitmap bitmap)
     {
-        final FrameLayout page = pages.get(fromPage);
-        final View imageView = page.findViewWithTag(ImageView.class);
-        if (imageView == null)
-        {
-            return;
-        }
-        page.removeView(imageView);
-        final Bitmap bitmap = visiblePageNumToBitmap.remove(fromPage);
-        bitmap.recycle();
+        init();
+        pageTable.clearPartialBitmap(pageNum);
+        setPageSize(pageNum, bitmap);
+        recycleBitmap(pageTable.putBitmap(pageNum, bitmap, PageTable.SHOWN));
+        pageContainer.invalidatePage(pageNum);
     }
 
-    private ImageView createImageView(Bitmap bitmap)
+    private void setPageSize(int pageNum, Bitmap bitmap)
     {
-        final ImageView imageView = new ImageView(getContext());
-        imageView.setImageBitmap(bitmap);
-        imageView.setTag(ImageView.class);
-        imageView.setLayoutParams(new FrameLayout.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
-        imageView.setScaleType(ImageView.ScaleType.FIT_XY);
-        return imageView;
+        pageContainer.setAspectRatio(pageNum, bitmap.getWidth() * 1.0f / bitmap.getHeight());
     }
 
-    private TextView createPageNumView(int i)
+    private Bitmap removeImageFromPage(int fromPage)
     {
-        TextView pageNumTextView = new TextView(getContext());
-        pageNumTextView.setText("Page " + (i + 1));
-        pageNumTextView.setTextSize(32);
-        pageNumTextView.setGravity(Gravity.CENTER_VERTICAL | Gravity.CENTER_HORIZONTAL);
-        pageNumTextView.setLayoutParams(new LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
-        return pageNumTextView;
+        final Bitmap bitmap = pageTable.takeBitmap(fromPage, PageTable.SHOWN);
+        if (bitmap != null)
+        {
+            pageContainer.invalidatePage(fromPage);
+        }
+        return bitmap;
     }
 
     public void showDocument()
@@ -367,7 +754,7 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
         {
             public void run()
             {
-                decodePage(0);
+                decodePage(0, 0);
             }
         });
     }
@@ -386,23 +773,37 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
 
     public int getCurrentPage()
     {
-        for (Map.Entry<Integer, FrameLayout> entry : pages.entrySet())
-        {
-            if (isPageVisible(entry.getValue()))
-            {
-                return entry.getKey();
-            }
-        }
-        return 0;
+        return pageContainer.getPageAt(getScrollY());
     }
 
     public void zoomChanged(float newZoom, float oldZoom)
     {
-        stopDecodingAllPages();
-        startDecodingVisiblePages(true);
+        if (decodeService.isTileRenderingSupported())
+        {
+            // cached tiles of every level keep being drawn scaled, only renders for a level no longer shown are dropped
+            stopDecodingInvisibleTiles();
+        }
+        else
+        {
+            // pages are rendered at the zoom they're shown at, those of the old one stay up until they're replaced
+            stopDecodingAllPages();
+            stopPrefetching();
+            markShownPagesStale();
+        }
         applyScaleAnimation(newZoom, oldZoom);
     }
 
+    private void markShownPagesStale()
+    {
+        for (int pageNum = pageTable.getFirst(); pageNum <= pageTable.getLast(); pageNum++)
+        {
+            if (pageTable.is(pageNum, PageTable.SHOWN))
+            {
+                pageTable.set(pageNum, PageTable.STALE);
+            }
+        }
+    }
+
     private void applyScaleAnimation(final float newZoom, final float oldZoom)
     {
         if (isAnimationRunning())
@@ -420,16 +821,14 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
             {
                 removeAnimation();
                 submitPendingBitmaps();
-                final int width = getWidth();
                 final int currentPage = getCurrentPage();
                 HeightAccum heightAccum = new HeightAccum();
-                for (Map.Entry<Integer, FrameLayout> pageIndexToPage : pages.entrySet())
-                {
-                    final FrameLayout page = pageIndexToPage.getValue();
-                    final Integer pageIndex = pageIndexToPage.getKey();
-                    setPageSizeByAspectRatio(width, page, pageIndex, newZoom, heightAccum, currentPage);
-                }
+                heightAccum.currentPageHeight = pageContainer.getPageTop(currentPage);
+                pageContainer.setLayout(getWidth(), newZoom);
+                heightAccum.newPageHeight = pageContainer.getPageTop(currentPage);
                 lastUpdateScrollByZoom = new UpdateScrollByZoom(newZoom, oldZoom, heightAccum, getScrollY());
+                // pages have their new size only after relayout
+                requestPageVisibilityUpdate();
             }
 
             public void onAnimationStart(Animation animation)
@@ -441,7 +840,7 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
             }
         };
         animation.setAnimationListener(animationListener);
-        getMainLayout().startAnimation(animation);
+        pageContainer.startAnimation(animation);
     }
 
     private class HeightAccum
@@ -468,25 +867,10 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
 
     private UpdateScrollByZoom lastUpdateScrollByZoom;
 
-    private void setPageSizeByAspectRatio(int mainWidth, FrameLayout page, Integer pageIndex, float zoom, HeightAccum heightAccum, int currentPage)
-    {
-        final int newHeight = Math.round(mainWidth / pageIndexToAspectRatio.get(pageIndex) * zoom);
-        final int height = page.getHeight();
-        page.setLayoutParams(new LinearLayout.LayoutParams(
-                Math.round(mainWidth * zoom),
-                newHeight
-        ));
-        if (heightAccum != null && currentPage > pageIndex)
-        {
-            heightAccum.currentPageHeight += height;
-            heightAccum.newPageHeight += newHeight;
-        }
-    }
-
     private void removeAnimation()
     {
         animationListener = null;
-        getMainLayout().clearAnimation();
+        pageContainer.clearAnimation();
     }
 
     private void updateScrollWhileZoom(float newZoom, float oldZoom, HeightAccum heightAccum, float currentScrollY)
@@ -531,7 +915,7 @@ public class DjvuDocumentView extends ScrollView implements ZoomListener
                 break;
             case MotionEvent.ACTION_UP:
                 velocityTracker.computeCurrentVelocity(1000);
-                scroller.fling(getScrollX(), 0, (int) -velocityTracker.getXVelocity(), 0, 0, getMainLayout().getWidth(), 0, 0);
+                scroller.fling(getScrollX(), 0, (int) -velocityTracker.getXVelocity(), 0, 0, pageContainer.getWidth(), 0, 0);
                 velocityTracker.recycle();
                 velocityTracker = null;
                 break;
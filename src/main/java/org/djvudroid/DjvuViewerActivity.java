@@ -2,14 +2,21 @@ package org.djvudroid;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.*;
 import android.widget.FrameLayout;
+import org.djvudroid.codec.CodecContext;
+import org.djvudroid.codec.DjvuContext;
+import org.djvudroid.codec.JavaDjvuContext;
 import org.djvudroid.codec.LibraryExtracter;
 import org.djvudroid.models.ZoomModel;
 import org.djvudroid.views.DjvuZoomControls;
 
+import java.io.File;
+
 public class DjvuViewerActivity extends Activity
 {
     private static final int MENU_EXIT = 0;
@@ -20,6 +27,7 @@ public class DjvuViewerActivity extends Activity
     private static final int DIALOG_GOTO = 0;
 
     private static final String DOCUMENT_VIEW_STATE_PREFERENCES = "DjvuDocumentViewState";
+    private static final String SPOOL_DIR = "spool";
     private static DecodeService decodeService;
 
     //Reuse decodeService in process cause it holds decode caches
@@ -33,16 +41,28 @@ public class DjvuViewerActivity extends Activity
     public void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
-        LibraryExtracter.extractCodecLibrary(this);
         initDecodeService();
         final ZoomModel zoomModel = new ZoomModel();
         documentView = new DjvuDocumentView(this, zoomModel);
         zoomModel.addEventListener(documentView);
         documentView.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
         decodeService.setContentResolver(getContentResolver());
+        decodeService.setCacheDir(getCacheDir());
         decodeService.setContainerView(documentView);
         documentView.setDecodeService(decodeService);
-        decodeService.open(getIntent().getData());
+        decodeService.open(getIntent().getData(), new DecodeService.OpenCallback()
+        {
+            public void documentOpened()
+            {
+                runOnUiThread(new Runnable()
+                {
+                    public void run()
+                    {
+                        showDocument();
+                    }
+                });
+            }
+        });
 
         viewerPreferences = new ViewerPreferences(this);
 
@@ -52,12 +72,25 @@ public class DjvuViewerActivity extends Activity
         setFullScreen();
         setContentView(frameLayout);
 
+        viewerPreferences.addRecent(getIntent().getData());
+    }
+
+    /**
+     * The reading state is kept by document id, so the document is only shown once it is open.
+     */
+    private void showDocument()
+    {
+        if (isFinishing())
+        {
+            return;
+        }
         final SharedPreferences sharedPreferences = getSharedPreferences(DOCUMENT_VIEW_STATE_PREFERENCES, 0);
-        documentView.goToPage(sharedPreferences.getInt(getIntent().getData().toString(), 0));
-        decodeService.twoUp = sharedPreferences.getBoolean(getIntent().getData().toString() + ".twoUp", false);
+        // reading state used to be keyed by uri, it is still picked up until the document is closed once
+        final String legacyKey = getIntent().getData().toString();
+        documentView.goToPage(sharedPreferences.getInt(decodeService.getDocumentId(), sharedPreferences.getInt(legacyKey, 0)));
+        decodeService.twoUp = sharedPreferences.getBoolean(decodeService.getDocumentId() + ".twoUp",
+                sharedPreferences.getBoolean(legacyKey + ".twoUp", false));
         documentView.showDocument();
-
-        viewerPreferences.addRecent(getIntent().getData());
     }
 
     private void setFullScreen()
@@ -82,11 +115,33 @@ public class DjvuViewerActivity extends Activity
         return new FrameLayout(this);
     }
 
-    private static void initDecodeService()
+    private void initDecodeService()
     {
         if (decodeService == null)
         {
-            decodeService = new DecodeService();
+            decodeService = new DecodeService(createCodecContext(this, new File(getCacheDir(), SPOOL_DIR)));
+        }
+    }
+
+    /**
+     * @param spoolDir where streams that can't be mapped are copied to, null to not copy them
+     */
+    static CodecContext createCodecContext(Context context, File spoolDir)
+    {
+        try
+        {
+            LibraryExtracter.extractCodecLibrary(context);
+            final DjvuContext djvuContext = new DjvuContext();
+            if (spoolDir != null)
+            {
+                djvuContext.setSpoolDir(spoolDir);
+            }
+            return djvuContext;
+        }
+        catch (UnsatisfiedLinkError e)
+        {
+            Log.w(DecodeService.DJVU_DROID, "Native codec library unavailable, falling back to pure-Java decoder", e);
+            return new JavaDjvuContext();
         }
     }
 
@@ -99,10 +154,17 @@ public class DjvuViewerActivity extends Activity
 
     private void saveCurrentPage()
     {
+        if (decodeService.getDocumentId() == null)
+        {
+            // left before the document was open, there is nothing to save
+            return;
+        }
         final SharedPreferences sharedPreferences = getSharedPreferences(DOCUMENT_VIEW_STATE_PREFERENCES, 0);
         final SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putInt(getIntent().getData().toString(), documentView.getCurrentPage());
-        editor.putBoolean(getIntent().getData().toString() + ".twoUp", decodeService.twoUp);
+        editor.putInt(decodeService.getDocumentId(), documentView.getCurrentPage());
+        editor.putBoolean(decodeService.getDocumentId() + ".twoUp", decodeService.twoUp);
+        editor.remove(getIntent().getData().toString());
+        editor.remove(getIntent().getData().toString() + ".twoUp");
         editor.commit();
     }
 
@@ -132,7 +194,10 @@ public class DjvuViewerActivity extends Activity
                 System.exit(0);
                 return true;
             case MENU_GOTO:
-                showDialog(DIALOG_GOTO);
+                if (decodeService.getDocumentId() != null)
+                {
+                    showDialog(DIALOG_GOTO);
+                }
                 return true;
             case MENU_FULL_SCREEN:
                 item.setChecked(!item.isChecked());
@@ -143,6 +208,10 @@ public class DjvuViewerActivity extends Activity
                 startActivity(getIntent());
                 return true;
             case MENU_PAGE_LAYOUT:
+	        if (decodeService.getDocumentId() == null)
+	        {
+	            return true;
+	        }
 	        decodeService.twoUp = !decodeService.twoUp;
 		documentView.setDecodeService(decodeService);
 		documentView.showDocument();
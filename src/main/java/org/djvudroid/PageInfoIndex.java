@@ -0,0 +1,115 @@
+package org.djvudroid;
+
+import android.util.Log;
+import org.djvudroid.codec.PageInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps each document's {@link PageInfo}s in a small file named after the document id, so they are only scanned
+ * once per document.
+ */
+class PageInfoIndex
+{
+    private static final int VERSION = 1;
+
+    private final File dir;
+
+    PageInfoIndex(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * @return null if the document wasn't scanned yet or its file can't be read
+     */
+    PageInfo[] load(String documentId)
+    {
+        final File file = new File(dir, documentId);
+        if (!file.isFile())
+        {
+            return null;
+        }
+        DataInputStream inputStream = null;
+        try
+        {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (inputStream.readInt() != VERSION)
+            {
+                return null;
+            }
+            final PageInfo[] pageInfos = new PageInfo[inputStream.readInt()];
+            for (int i = 0; i < pageInfos.length; i++)
+            {
+                pageInfos[i] = new PageInfo(inputStream.readInt(), inputStream.readInt(), inputStream.readShort(),
+                        inputStream.readShort(), inputStream.readBoolean());
+            }
+            return pageInfos;
+        }
+        catch (IOException e)
+        {
+            Log.w(DecodeService.DJVU_DROID, "Can't read page info of " + documentId, e);
+            return null;
+        }
+        finally
+        {
+            close(inputStream);
+        }
+    }
+
+    void save(String documentId, PageInfo[] pageInfos)
+    {
+        dir.mkdirs();
+        final File file = new File(dir, documentId);
+        DataOutputStream outputStream = null;
+        try
+        {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(pageInfos.length);
+            for (PageInfo pageInfo : pageInfos)
+            {
+                outputStream.writeInt(pageInfo.getWidth());
+                outputStream.writeInt(pageInfo.getHeight());
+                outputStream.writeShort(pageInfo.getDpi());
+                outputStream.writeShort(pageInfo.getRotation());
+                outputStream.writeBoolean(pageInfo.isBitonal());
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(DecodeService.DJVU_DROID, "Can't save page info of " + documentId, e);
+            close(outputStream);
+            outputStream = null;
+            file.delete();
+        }
+        finally
+        {
+            close(outputStream);
+        }
+    }
+
+    private static void close(Closeable closeable)
+    {
+        if (closeable == null)
+        {
+            return;
+        }
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            Log.w(DecodeService.DJVU_DROID, "Can't close page info file", e);
+        }
+    }
+}
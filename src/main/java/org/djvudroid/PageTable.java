@@ -0,0 +1,187 @@
+package org.djvudroid;
+
+import android.graphics.Bitmap;
+
+/**
+ * What the document view shows and renders for each page, in arrays indexed by page number so scrolling looks pages
+ * up and walks them without boxing or allocating anything. Aspect ratios and tops are the page container's.
+ * <p/>
+ * Pages with any state are between {@link #getFirst()} and {@link #getLast()}, that range only spans the pages
+ * around the viewport and is what callers walk.
+ */
+class PageTable
+{
+    // a render for display is running
+    static final int DECODING = 1;
+    static final int PREFETCHING = 2;
+    // shows the bitmap of the running render, which stays the service's
+    static final int PARTIAL = 4;
+    // where the page's bitmap is: on screen, put aside for later, or waiting for an animation to end
+    static final int SHOWN = 8;
+    static final int PREFETCHED = 16;
+    static final int PENDING = 32;
+    // the shown bitmap is of another zoom, it stays up until one of the current zoom replaces it
+    static final int STALE = 64;
+    private static final int BITMAP = SHOWN | PREFETCHED | PENDING | STALE;
+
+    private int[] states = new int[0];
+    private Bitmap[] bitmaps = new Bitmap[0];
+    private Bitmap[] partialBitmaps = new Bitmap[0];
+    private Object[] decodes = new Object[0];
+    private int first;
+    private int last = -1;
+
+    /**
+     * Pages below the new count keep their state, the caller is done with those above it.
+     */
+    void setPageCount(int pageCount)
+    {
+        final int kept = Math.min(pageCount, states.length);
+        final int[] newStates = new int[pageCount];
+        final Bitmap[] newBitmaps = new Bitmap[pageCount];
+        final Bitmap[] newPartialBitmaps = new Bitmap[pageCount];
+        final Object[] newDecodes = new Object[pageCount];
+        System.arraycopy(states, 0, newStates, 0, kept);
+        System.arraycopy(bitmaps, 0, newBitmaps, 0, kept);
+        System.arraycopy(partialBitmaps, 0, newPartialBitmaps, 0, kept);
+        System.arraycopy(decodes, 0, newDecodes, 0, kept);
+        states = newStates;
+        bitmaps = newBitmaps;
+        partialBitmaps = newPartialBitmaps;
+        decodes = newDecodes;
+        last = Math.min(last, pageCount - 1);
+    }
+
+    int getPageCount()
+    {
+        return states.length;
+    }
+
+    /**
+     * @return whether the page has any of <code>flags</code>, false for pages past the end
+     */
+    boolean is(int pageIndex, int flags)
+    {
+        return pageIndex >= 0 && pageIndex < states.length && (states[pageIndex] & flags) != 0;
+    }
+
+    void set(int pageIndex, int flags)
+    {
+        states[pageIndex] |= flags;
+        extendRange(pageIndex);
+    }
+
+    void clear(int pageIndex, int flags)
+    {
+        if (pageIndex < states.length)
+        {
+            states[pageIndex] &= ~flags;
+        }
+    }
+
+    /**
+     * @param kind {@link #SHOWN}, {@link #PREFETCHED} or {@link #PENDING}
+     * @return the bitmap the page had before if it's another one, for the caller to recycle
+     */
+    Bitmap putBitmap(int pageIndex, Bitmap bitmap, int kind)
+    {
+        final Bitmap oldBitmap = bitmaps[pageIndex];
+        bitmaps[pageIndex] = bitmap;
+        states[pageIndex] = (states[pageIndex] & ~BITMAP) | kind;
+        extendRange(pageIndex);
+        return oldBitmap != bitmap ? oldBitmap : null;
+    }
+
+    /**
+     * @return the page's bitmap if it is of <code>kind</code>, which the page no longer has afterwards
+     */
+    Bitmap takeBitmap(int pageIndex, int kind)
+    {
+        if (!is(pageIndex, kind))
+        {
+            return null;
+        }
+        final Bitmap bitmap = bitmaps[pageIndex];
+        bitmaps[pageIndex] = null;
+        states[pageIndex] &= ~BITMAP;
+        return bitmap;
+    }
+
+    /**
+     * What to draw for the page, its finished bitmap or else the one being rendered into.
+     */
+    Bitmap getDrawnBitmap(int pageIndex)
+    {
+        if (is(pageIndex, SHOWN))
+        {
+            return bitmaps[pageIndex];
+        }
+        return is(pageIndex, PARTIAL) ? partialBitmaps[pageIndex] : null;
+    }
+
+    void setPartialBitmap(int pageIndex, Bitmap bitmap)
+    {
+        partialBitmaps[pageIndex] = bitmap;
+        set(pageIndex, PARTIAL);
+    }
+
+    /**
+     * Forgets the bitmap of the running render, never recycled here.
+     */
+    void clearPartialBitmap(int pageIndex)
+    {
+        if (pageIndex < partialBitmaps.length)
+        {
+            partialBitmaps[pageIndex] = null;
+        }
+        clear(pageIndex, PARTIAL);
+    }
+
+    /**
+     * Remembers which of the page's renders is the latest, what an older one posts after it was stopped is ignored.
+     */
+    void setDecode(int pageIndex, Object decode)
+    {
+        decodes[pageIndex] = decode;
+    }
+
+    boolean isDecode(int pageIndex, Object decode)
+    {
+        return pageIndex >= 0 && pageIndex < decodes.length && decodes[pageIndex] == decode;
+    }
+
+    int getFirst()
+    {
+        while (first <= last && isEmpty(first))
+        {
+            first++;
+        }
+        return first;
+    }
+
+    int getLast()
+    {
+        while (last >= first && isEmpty(last))
+        {
+            last--;
+        }
+        return last;
+    }
+
+    private boolean isEmpty(int pageIndex)
+    {
+        return states[pageIndex] == 0;
+    }
+
+    private void extendRange(int pageIndex)
+    {
+        if (first > last)
+        {
+            first = pageIndex;
+            last = pageIndex;
+            return;
+        }
+        first = Math.min(first, pageIndex);
+        last = Math.max(last, pageIndex);
+    }
+}
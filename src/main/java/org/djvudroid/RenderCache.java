@@ -0,0 +1,271 @@
+package org.djvudroid;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import org.djvudroid.codec.RenderPool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Rendered pages and tiles kept on disk as raw <code>RGB_565</code> pixels after an 8 bytes width and height header,
+ * so a hit is a memory mapped copy into a pooled bitmap instead of a decode. Files are written on a background thread
+ * from a copy of the bitmap, least recently used ones are deleted once the byte budget is exceeded.
+ */
+class RenderCache
+{
+    private static final int HEADER_SIZE = 8;
+    // renders waiting to be written are held in memory, past this new ones are simply not cached
+    private static final long MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+
+    private final File dir;
+    private long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private boolean indexed;
+    private long bytes;
+    private long pendingBytes;
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+    RenderCache(File dir, long maxBytes)
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * @return a pooled bitmap with the cached render, or null
+     */
+    Bitmap get(String key)
+    {
+        synchronized (this)
+        {
+            index();
+            if (entries.get(key) == null)
+            {
+                return null;
+            }
+        }
+        final File file = new File(dir, key);
+        FileInputStream inputStream = null;
+        Bitmap bitmap = null;
+        try
+        {
+            inputStream = new FileInputStream(file);
+            final FileChannel channel = inputStream.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header) != HEADER_SIZE)
+            {
+                throw new IOException("Truncated header");
+            }
+            final int width = header.getInt(0);
+            final int height = header.getInt(4);
+            final ByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, channel.size() - HEADER_SIZE);
+            bitmap = RenderPool.getInstance().obtainBitmap(width, height);
+            bitmap.copyPixelsFromBuffer(pixels);
+            file.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        }
+        catch (Exception e)
+        {
+            // a truncated or otherwise broken file, it's only a cache
+            Log.w(DecodeService.DJVU_DROID, "Can't read cached render " + key, e);
+            if (bitmap != null)
+            {
+                RenderPool.getInstance().recycleBitmap(bitmap);
+            }
+            remove(key);
+            return null;
+        }
+        finally
+        {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * Queues a copy of <code>bitmap</code> for writing, the bitmap itself can be used and recycled right away.
+     */
+    void put(final String key, Bitmap bitmap)
+    {
+        final int size = bitmap.getRowBytes() * bitmap.getHeight();
+        synchronized (this)
+        {
+            index();
+            if (bitmap.getConfig() != Bitmap.Config.RGB_565 || entries.containsKey(key)
+                    || pendingBytes + size > MAX_PENDING_BYTES || HEADER_SIZE + size > maxBytes)
+            {
+                return;
+            }
+            pendingBytes += size;
+        }
+        final ByteBuffer pixels = RenderPool.getInstance().obtainBuffer(HEADER_SIZE + size);
+        pixels.putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(pixels.slice());
+        try
+        {
+            writeExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        write(key, pixels);
+                    }
+                    finally
+                    {
+                        written(pixels, size);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // closed meanwhile, the render just isn't cached
+            written(pixels, size);
+        }
+    }
+
+    private void written(ByteBuffer pixels, int size)
+    {
+        RenderPool.getInstance().recycleBuffer(pixels);
+        synchronized (this)
+        {
+            pendingBytes -= size;
+        }
+    }
+
+    /**
+     * Renders already queued are still written, then the writer thread ends. Nothing is cached afterwards.
+     */
+    void close()
+    {
+        writeExecutor.shutdown();
+    }
+
+    private void write(String key, ByteBuffer pixels)
+    {
+        dir.mkdirs();
+        final File partFile = new File(dir, key + PART_SUFFIX);
+        FileOutputStream outputStream = null;
+        try
+        {
+            outputStream = new FileOutputStream(partFile);
+            pixels.rewind();
+            while (pixels.hasRemaining())
+            {
+                outputStream.getChannel().write(pixels);
+            }
+            outputStream.close();
+            outputStream = null;
+            if (!partFile.renameTo(new File(dir, key)))
+            {
+                throw new IOException("Can't rename " + partFile);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(DecodeService.DJVU_DROID, "Can't cache render " + key, e);
+            close(outputStream);
+            partFile.delete();
+            return;
+        }
+        synchronized (this)
+        {
+            entries.put(key, (long) pixels.limit());
+            bytes += pixels.limit();
+            trim();
+        }
+    }
+
+    private synchronized void remove(String key)
+    {
+        final Long size = entries.remove(key);
+        if (size != null)
+        {
+            bytes -= size;
+        }
+        new File(dir, key).delete();
+    }
+
+    /**
+     * Picks up the files of earlier runs, oldest first so they are evicted first.
+     */
+    private void index()
+    {
+        if (indexed)
+        {
+            return;
+        }
+        indexed = true;
+        final File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File file1, File file2)
+            {
+                return file1.lastModified() < file2.lastModified() ? -1 : file1.lastModified() == file2.lastModified() ? 0 : 1;
+            }
+        });
+        for (File file : files)
+        {
+            if (file.getName().endsWith(PART_SUFFIX))
+            {
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            bytes += file.length();
+        }
+        trim();
+    }
+
+    private void trim()
+    {
+        for (Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator(); bytes > maxBytes && iterator.hasNext();)
+        {
+            final Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            bytes -= entry.getValue();
+            new File(dir, entry.getKey()).delete();
+        }
+    }
+
+    private static void close(Closeable closeable)
+    {
+        if (closeable == null)
+        {
+            return;
+        }
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            Log.w(DecodeService.DJVU_DROID, "Can't close cached render", e);
+        }
+    }
+}
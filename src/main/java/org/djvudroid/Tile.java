@@ -0,0 +1,103 @@
+package org.djvudroid;
+
+/**
+ * A fixed size square of a page rendered at some zoom. In deep zoom only the tiles around the viewport are decoded
+ * and cached instead of whole pages.
+ */
+public class Tile
+{
+    public static final int SIZE = 256;
+
+    // only probes change, see set()
+    private int pageIndex;
+    private float zoom;
+    private int column;
+    private int row;
+
+    /**
+     * Tiles are rendered only at power of two zoom levels and scaled for the zooms in between, so a page has a small
+     * pyramid of levels to cache instead of one set of tiles per zoom step. The level is never below the zoom, which
+     * keeps scaled tiles sharp.
+     */
+    public static float getLevel(float zoom)
+    {
+        float level = 1.0f;
+        while (level < zoom)
+        {
+            level *= 2;
+        }
+        return level;
+    }
+
+    public Tile(int pageIndex, float zoom, int column, int row)
+    {
+        this.pageIndex = pageIndex;
+        this.zoom = zoom;
+        this.column = column;
+        this.row = row;
+    }
+
+    /**
+     * Turns a probe used for lookups into another tile, so looking tiles up doesn't allocate one each time. A tile
+     * kept in a set or map must never be changed.
+     */
+    Tile set(int pageIndex, float zoom, int column, int row)
+    {
+        this.pageIndex = pageIndex;
+        this.zoom = zoom;
+        this.column = column;
+        this.row = row;
+        return this;
+    }
+
+    public int getPageIndex()
+    {
+        return pageIndex;
+    }
+
+    public float getZoom()
+    {
+        return zoom;
+    }
+
+    public int getLeft()
+    {
+        return column * SIZE;
+    }
+
+    public int getTop()
+    {
+        return row * SIZE;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof Tile))
+        {
+            return false;
+        }
+        final Tile tile = (Tile) o;
+        return pageIndex == tile.pageIndex && zoom == tile.zoom && column == tile.column && row == tile.row;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = pageIndex;
+        result = 31 * result + Float.floatToIntBits(zoom);
+        result = 31 * result + column;
+        result = 31 * result + row;
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Tile " + pageIndex + "@" + zoom + " [" + column + ", " + row + "]";
+    }
+}
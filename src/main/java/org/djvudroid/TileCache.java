@@ -0,0 +1,115 @@
+package org.djvudroid;
+
+import android.graphics.Bitmap;
+import org.djvudroid.codec.RenderPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tile pyramid shared by all pages. Tiles of every zoom level stay cached until the byte budget is exceeded, least
+ * recently drawn first, so zooming back to a level that was already shown needs no rendering. The tiles of each page
+ * are also kept in a list by page index, so drawing a page doesn't look through every page's tiles.
+ */
+public class TileCache
+{
+    private static final long MAX_BYTES = 12 * 1024 * 1024;
+
+    private final LinkedHashMap<Tile, Bitmap> tiles = new LinkedHashMap<Tile, Bitmap>(16, 0.75f, true);
+    // by page index, each page's tiles ordered by zoom
+    private final ArrayList<ArrayList<Tile>> pagesTiles = new ArrayList<ArrayList<Tile>>();
+    private long bytes;
+
+    public boolean contains(Tile tile)
+    {
+        return tiles.containsKey(tile);
+    }
+
+    public Bitmap get(Tile tile)
+    {
+        return tiles.get(tile);
+    }
+
+    public void put(Tile tile, Bitmap bitmap)
+    {
+        final Bitmap oldBitmap = tiles.put(tile, bitmap);
+        if (oldBitmap != null)
+        {
+            bytes -= sizeOf(oldBitmap);
+            RenderPool.getInstance().recycleBitmap(oldBitmap);
+        }
+        else
+        {
+            addPageTile(tile);
+        }
+        bytes += sizeOf(bitmap);
+        trim();
+    }
+
+    /**
+     * The cached tiles of a page ordered by zoom, lowest first, without touching their recency. The list is the
+     * cache's own, it changes with the cache and must not be changed by the caller.
+     */
+    public List<Tile> getPageTiles(int pageIndex)
+    {
+        if (pageIndex >= pagesTiles.size() || pagesTiles.get(pageIndex) == null)
+        {
+            return Collections.emptyList();
+        }
+        return pagesTiles.get(pageIndex);
+    }
+
+    public void clear()
+    {
+        for (Bitmap bitmap : tiles.values())
+        {
+            RenderPool.getInstance().recycleBitmap(bitmap);
+        }
+        tiles.clear();
+        pagesTiles.clear();
+        bytes = 0;
+    }
+
+    private void addPageTile(Tile tile)
+    {
+        final int pageIndex = tile.getPageIndex();
+        while (pagesTiles.size() <= pageIndex)
+        {
+            pagesTiles.add(null);
+        }
+        ArrayList<Tile> pageTiles = pagesTiles.get(pageIndex);
+        if (pageTiles == null)
+        {
+            pageTiles = new ArrayList<Tile>();
+            pagesTiles.set(pageIndex, pageTiles);
+        }
+        int index = pageTiles.size();
+        while (index > 0 && pageTiles.get(index - 1).getZoom() > tile.getZoom())
+        {
+            index--;
+        }
+        pageTiles.add(index, tile);
+    }
+
+    private void trim()
+    {
+        for (Iterator<Map.Entry<Tile, Bitmap>> iterator = tiles.entrySet().iterator(); bytes > MAX_BYTES && iterator.hasNext();)
+        {
+            final Map.Entry<Tile, Bitmap> entry = iterator.next();
+            final Bitmap bitmap = entry.getValue();
+            iterator.remove();
+            pagesTiles.get(entry.getKey().getPageIndex()).remove(entry.getKey());
+            bytes -= sizeOf(bitmap);
+            RenderPool.getInstance().recycleBitmap(bitmap);
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap)
+    {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,17 @@
+package org.djvudroid.codec;
+
+/**
+ * Checked between bands of a render, so a render nobody waits for anymore stops early.
+ */
+public interface CancellationToken
+{
+    CancellationToken NOT_CANCELLABLE = new CancellationToken()
+    {
+        public boolean isCancelled()
+        {
+            return false;
+        }
+    };
+
+    boolean isCancelled();
+}
@@ -0,0 +1,24 @@
+package org.djvudroid.codec;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * Entry point of a decoding backend. {@link DjvuContext} is the JNI backend over
+ * <code>libdjvudroid.so</code>, {@link JavaDjvuContext} is a pure-Java one that runs on any JVM.
+ */
+public interface CodecContext
+{
+    /**
+     * @param documentId the document's fingerprint, stable across the uris it is reached through
+     */
+    CodecDocument openDocument(Uri uri, String documentId);
+
+    void setContentResolver(ContentResolver contentResolver);
+
+    /**
+     * Whether pages render a window of themselves at the window's cost. If not, every window costs a whole page
+     * render and callers should render whole pages instead.
+     */
+    boolean isRegionRenderingSupported();
+}
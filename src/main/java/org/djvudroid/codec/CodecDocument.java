@@ -0,0 +1,18 @@
+package org.djvudroid.codec;
+
+public interface CodecDocument
+{
+    /**
+     * Returns the page pinned in the document's page cache. Every call must be matched by {@link #releasePage}.
+     */
+    CodecPage getPage(int pageNumber);
+
+    void releasePage(CodecPage page);
+
+    int getPageCount();
+
+    /**
+     * Frees the document and its cached pages. Pages still pinned are freed when released.
+     */
+    void recycle();
+}
@@ -0,0 +1,60 @@
+package org.djvudroid.codec;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+public interface CodecPage
+{
+    boolean isDecoding();
+
+    void waitForDecode();
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Renders the whole page scaled to <code>width</code> x <code>height</code> into <code>buffer</code>
+     * as <code>RGB_565</code> pixels, row by row. The buffer must hold at least <code>width * height * 2</code> bytes.
+     * @return false if nothing was rendered
+     */
+    boolean renderPage(int width, int height, ByteBuffer buffer);
+
+    /**
+     * Renders only a window of the page. The scale is given by <code>pageWidth</code> x <code>pageHeight</code>, the
+     * size the whole page would have, and <code>left, top, width, height</code> select the window in those scaled
+     * coordinates, so the cost is proportional to the window rather than the page, as long as
+     * {@link CodecContext#isRegionRenderingSupported()}. The buffer receives <code>width * height</code>
+     * <code>RGB_565</code> pixels.
+     * @return false if nothing was rendered, or if the window doesn't lie within the page
+     */
+    boolean renderRegion(int pageWidth, int pageHeight, int left, int top, int width, int height, ByteBuffer buffer);
+
+    /**
+     * Same as {@link #renderRegion(int, int, int, int, int, int, ByteBuffer)} but renders in bands of rows and gives
+     * up between bands once <code>cancellationToken</code> is cancelled. Without
+     * {@link CodecContext#isRegionRenderingSupported()} it's a single call that can only be cancelled before it starts.
+     * @return false if cancelled or nothing was rendered
+     */
+    boolean renderRegion(int pageWidth, int pageHeight, int left, int top, int width, int height, ByteBuffer buffer,
+                         CancellationToken cancellationToken);
+
+    /**
+     * @return the whole page in a bitmap of its own, or null if it couldn't be rendered
+     */
+    Bitmap renderBitmap(int width, int height);
+
+    /**
+     * Renders a window of the page, sized like <code>bitmap</code>, a mutable <code>RGB_565</code> one, band by band.
+     * The scale and window origin work like in {@link #renderRegion(int, int, int, int, int, int, ByteBuffer)}. Each
+     * band goes through a band sized buffer straight into the bitmap, so there's never a second full page of pixels
+     * around, and <code>renderListener</code>, if not null, gets to show the page while it's rendering. Without
+     * {@link CodecContext#isRegionRenderingSupported()} the window is rendered in one go instead, with no bands.
+     * @return false if cancelled before the window was fully rendered
+     */
+    boolean renderBitmap(int pageWidth, int pageHeight, int left, int top, Bitmap bitmap,
+                         CancellationToken cancellationToken, RenderListener renderListener);
+
+    void recycle();
+}
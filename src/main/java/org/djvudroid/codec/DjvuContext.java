@@ -3,27 +3,41 @@ package org.djvudroid.codec;
 import android.content.ContentResolver;
 import android.net.Uri;
 import android.util.Log;
-import org.djvudroid.utils.MD5StringUtil;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class DjvuContext implements Runnable
+public class DjvuContext implements Runnable, CodecContext
 {
     private final long contextHandle;
     private ContentResolver contentResolver;
     private static final int BUFFER_SIZE = 32768;
+    private static final int MAPPED_WINDOW_SIZE = 1024 * 1024;
+    private static final int READ_AHEAD_SIZE = 1024 * 1024;
     private static final String DJVU_DROID_CODEC_LIBRARY = "DjvuDroidCodecLibrary";
-    private final HashMap<String, Semaphore> urlToSemaphore = new HashMap<String, Semaphore>();
-    private final Object waitObject = new Object();
+    private static final String URL_PREFIX = "hash://";
+    private final HashMap<String, DjvuStreamIndex> urlToStreamIndex = new HashMap<String, DjvuStreamIndex>();
+    private final CopyOnWriteArraySet<DjvuPage> decodingPages = new CopyOnWriteArraySet<DjvuPage>();
     private final HashMap<String, Uri> hashToUri = new HashMap<String, Uri>();
+    private final HashMap<Long, SparseDocumentReader> docHandleToSparseReader = new HashMap<Long, SparseDocumentReader>();
+    private final HashMap<Long, String> docHandleToUrl = new HashMap<Long, String>();
+    private boolean sparseReads = true;
+    private SpoolCache spoolCache;
+    private long spoolMaxBytes;
+    private final ExecutorService streamExecutor = Executors.newSingleThreadExecutor();
+    private final CopyOnWriteArraySet<StreamFeed> streamFeeds = new CopyOnWriteArraySet<StreamFeed>();
+    // held while a slice is fed, so a document isn't freed in the middle of one
+    private final Object feedLock = new Object();
 
     public DjvuContext()
     {
@@ -31,13 +45,13 @@ public class DjvuContext implements Runnable
         new Thread(this).start();
     }
 
-    public DjvuDocument openDocument(Uri uri)
+    public DjvuDocument openDocument(Uri uri, String documentId)
     {
-        final Semaphore semaphore = new Semaphore(0);
-        final String uriHash = "hash://" + MD5StringUtil.md5StringFor(uri.toString());
+        final DjvuStreamIndex streamIndex = new DjvuStreamIndex();
+        final String uriHash = URL_PREFIX + documentId;
         hashToUri.put(uriHash, uri);
-        urlToSemaphore.put(uriHash, semaphore);
-        return DjvuDocument.openDocument(uriHash, this, semaphore, waitObject);
+        urlToStreamIndex.put(uriHash, streamIndex);
+        return DjvuDocument.openDocument(uriHash, this, streamIndex);
     }
 
     long getContextHandle()
@@ -45,6 +59,68 @@ public class DjvuContext implements Runnable
         return contextHandle;
     }
 
+    /**
+     * False with the shipped libdjvudroid.so, which can only render whole pages.
+     */
+    public boolean isRegionRenderingSupported()
+    {
+        return DjvuPage.isRegionRenderingSupported();
+    }
+
+    /**
+     * Bundled documents in local files are read component by component as their pages are opened instead of being
+     * fed to the codec whole. On by default, it only applies to documents opened afterwards.
+     */
+    public void setSparseReads(boolean sparseReads)
+    {
+        this.sparseReads = sparseReads;
+    }
+
+    /**
+     * Streams that can't be memory mapped get copied to <code>spoolDir</code> as they are read, later opens of the same
+     * document then read the copy.
+     */
+    public void setSpoolDir(File spoolDir)
+    {
+        spoolCache = new SpoolCache(spoolDir);
+        spoolCache.setMaxBytes(spoolMaxBytes);
+    }
+
+    /**
+     * Disk budget of the spooled copies, 0, the default, makes it a share of the space free where they are kept. May
+     * be set before or after {@link #setSpoolDir}.
+     */
+    public void setSpoolMaxBytes(long maxBytes)
+    {
+        spoolMaxBytes = maxBytes;
+        if (spoolCache != null)
+        {
+            spoolCache.setMaxBytes(maxBytes);
+        }
+    }
+
+    /**
+     * Stops feeding the document's streams, called before its handle is freed.
+     */
+    void documentClosed(long docHandle)
+    {
+        synchronized (feedLock)
+        {
+            for (StreamFeed feed : streamFeeds)
+            {
+                if (feed.docHandle == docHandle)
+                {
+                    feed.close(true);
+                }
+            }
+        }
+        synchronized (docHandleToSparseReader)
+        {
+            docHandleToSparseReader.remove(docHandle);
+            docHandleToUrl.remove(docHandle);
+        }
+    }
+
     public void run()
     {
         for(;;)
@@ -52,10 +128,7 @@ public class DjvuContext implements Runnable
             try
             {
                 handleMessage(contextHandle);
-                synchronized (waitObject)
-                {
-                    waitObject.notifyAll();
-                }
+                completeDecodedPages();
             }
             catch (Exception e)
             {
@@ -65,7 +138,33 @@ public class DjvuContext implements Runnable
     }
 
     /**
-     * Called from JNI
+     * Native messages don't say which page they are about, so after each one only the pages somebody is waiting for
+     * are checked and each finished page is signalled exactly once.
+     */
+    private void completeDecodedPages()
+    {
+        for (DjvuPage page : decodingPages)
+        {
+            if (page.completeIfDecoded())
+            {
+                decodingPages.remove(page);
+            }
+        }
+    }
+
+    void watchDecoding(DjvuPage page)
+    {
+        decodingPages.add(page);
+        // the page may have finished before it was registered, in which case no further message will come for it
+        if (page.completeIfDecoded())
+        {
+            decodingPages.remove(page);
+        }
+    }
+
+    /**
+     * Called from JNI on the message thread, the stream is fed from the stream executor so messages of other pages and
+     * documents keep being handled meanwhile.
      * @param uriHash uriHash to load from
      * @param streamId inner stream id
      * @param docHandle document handle to submit data to
@@ -73,71 +172,300 @@ public class DjvuContext implements Runnable
     @SuppressWarnings({"UnusedDeclaration"})
     private void handleNewStream(final String uriHash, final int streamId, final long docHandle)
     {
-        final Uri uri = hashToUri.get(uriHash);
-        Log.d(DJVU_DROID_CODEC_LIBRARY, "Starting data submit for: " + uriHash + "@" + uri);
-        InputStream inputStream = null;
-        try
+        final StreamFeed feed = new StreamFeed(uriHash, streamId, docHandle, urlToStreamIndex.remove(uriHash));
+        streamFeeds.add(feed);
+        streamExecutor.execute(feed);
+    }
+
+    /**
+     * One stream being fed to the codec, a slice at a time: streams of several documents take turns on the executor, and
+     * no more than a slice is read ahead of what the codec has been given.
+     */
+    private class StreamFeed implements Runnable
+    {
+        private final String url;
+        private final int streamId;
+        private final long docHandle;
+        private final DjvuStreamIndex streamIndex;
+        private InputStream inputStream;
+        private SpoolCache.Spool spool;
+        private ChunkSource source;
+        private boolean closed;
+
+        private StreamFeed(String url, int streamId, long docHandle, DjvuStreamIndex streamIndex)
         {
-            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-            inputStream = contentResolver.openInputStream(uri);
-            if (inputStream instanceof FileInputStream)
-            {
-                fileStreamWrite(streamId, docHandle, buffer, (FileInputStream) inputStream);
-            }
-            else
-            {
-                genericStreamWrite(streamId, docHandle, inputStream, buffer);
-            }
+            this.url = url;
+            this.streamId = streamId;
+            this.docHandle = docHandle;
+            this.streamIndex = streamIndex;
         }
-        catch (FileNotFoundException e)
+
+        public void run()
         {
-            throw new RuntimeException(e);
+            synchronized (feedLock)
+            {
+                if (closed)
+                {
+                    return;
+                }
+                boolean done = true;
+                boolean failed = true;
+                try
+                {
+                    done = feedSlice();
+                    failed = false;
+                }
+                catch (IOException e)
+                {
+                    Log.e(DJVU_DROID_CODEC_LIBRARY, "Can't read " + url, e);
+                }
+                finally
+                {
+                    if (done)
+                    {
+                        close(failed);
+                    }
+                }
+                if (!done)
+                {
+                    streamExecutor.execute(this);
+                }
+            }
         }
-        catch (IOException e)
+
+        /**
+         * @return true once the whole stream is in
+         */
+        private boolean feedSlice() throws IOException
         {
-            throw new RuntimeException(e);
+            if (source == null)
+            {
+                Log.d(DJVU_DROID_CODEC_LIBRARY, "Starting data submit for: " + url);
+                source = openSource(this);
+            }
+            int fed = 0;
+            while (fed < READ_AHEAD_SIZE)
+            {
+                final ByteBuffer chunk = source.next();
+                if (chunk == null)
+                {
+                    Log.d(DJVU_DROID_CODEC_LIBRARY, "Data submit finished for: " + url);
+                    return true;
+                }
+                streamWrite(docHandle, streamId, chunk, chunk.limit());
+                if (streamIndex != null)
+                {
+                    streamIndex.fed(chunk, chunk.limit());
+                }
+                fed += chunk.limit();
+            }
+            return false;
         }
-        finally
+
+        private void close(boolean stop)
         {
+            closed = true;
+            streamFeeds.remove(this);
+            // pages must not wait forever if the stream failed
+            if (streamIndex != null)
+            {
+                streamIndex.finished();
+            }
+            streamClose(docHandle, streamId, stop);
+            if (stop && spool != null)
+            {
+                spool.abort();
+            }
             if (inputStream != null)
             {
                 try
                 {
-                    streamClose(docHandle, streamId, false);
                     inputStream.close();
                 }
                 catch (IOException e)
                 {
-                    throw new RuntimeException(e);
+                    Log.w(DJVU_DROID_CODEC_LIBRARY, "Can't close " + url, e);
                 }
             }
         }
-        Log.d(DJVU_DROID_CODEC_LIBRARY, "Data submit finished for: " + uriHash + "@" + uri);
-        urlToSemaphore.remove(uriHash).release();
     }
 
-    private void fileStreamWrite(int streamId, long docHandle, ByteBuffer buffer, FileInputStream fileInputStream)
-            throws IOException
+    private ChunkSource openSource(StreamFeed feed) throws IOException
     {
-        final FileChannel channel = fileInputStream.getChannel();
-        int c;
-        while ((c = channel.read(buffer)) != -1)
+        final Uri uri = hashToUri.get(feed.url);
+        if (uri == null)
+        {
+            return openComponentSource(feed);
+        }
+        feed.inputStream = openInputStream(feed.url);
+        if (!(feed.inputStream instanceof FileInputStream))
         {
-            streamWrite(docHandle, streamId, buffer, c);
-            buffer.rewind();
+            feed.spool = spoolCache != null ? spoolCache.create(getDocumentId(feed.url)) : null;
+            return new InputStreamSource(feed.inputStream, feed.spool);
         }
+        final FileChannel channel = ((FileInputStream) feed.inputStream).getChannel();
+        final SparseDocumentReader sparseReader = sparseReads ? SparseDocumentReader.read(channel) : null;
+        if (sparseReader == null)
+        {
+            return new FileSource(channel);
+        }
+        synchronized (docHandleToSparseReader)
+        {
+            docHandleToSparseReader.put(feed.docHandle, sparseReader);
+            docHandleToUrl.put(feed.docHandle, feed.url);
+        }
+        return new BuffersSource(sparseReader.getIndirectHead());
     }
 
-    private void genericStreamWrite(int streamId, long docHandle, InputStream inputStream, ByteBuffer buffer)
-            throws IOException
+    /**
+     * A component of a sparsely read document, the codec names it by appending its id to the document url.
+     */
+    private ChunkSource openComponentSource(StreamFeed feed) throws IOException
     {
-        int c;
-        final byte[] bytes = new byte[BUFFER_SIZE];
-        while ((c = inputStream.read(bytes)) != -1)
+        final SparseDocumentReader sparseReader;
+        final String documentUrl;
+        synchronized (docHandleToSparseReader)
+        {
+            sparseReader = docHandleToSparseReader.get(feed.docHandle);
+            documentUrl = docHandleToUrl.get(feed.docHandle);
+        }
+        final int[] range = sparseReader != null ? sparseReader.getComponentRange(feed.url.substring(feed.url.lastIndexOf('/') + 1)) : null;
+        if (range == null)
+        {
+            throw new IOException("Unknown stream requested");
+        }
+        feed.inputStream = openInputStream(documentUrl);
+        if (!(feed.inputStream instanceof FileInputStream))
         {
-            buffer.rewind();
+            throw new IOException("Document isn't a file anymore");
+        }
+        final FileChannel channel = ((FileInputStream) feed.inputStream).getChannel();
+        return new BuffersSource(SparseDocumentReader.getMagic(), channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1]));
+    }
+
+    private InputStream openInputStream(String url) throws IOException
+    {
+        final File spooled = spoolCache != null ? spoolCache.get(getDocumentId(url)) : null;
+        return spooled != null ? new FileInputStream(spooled) : contentResolver.openInputStream(hashToUri.get(url));
+    }
+
+    private static String getDocumentId(String url)
+    {
+        return url.substring(URL_PREFIX.length());
+    }
+
+    /**
+     * Stream data in chunks, each one from the start of the returned buffer up to its limit.
+     */
+    interface ChunkSource
+    {
+        /**
+         * @return null at the end of the stream
+         */
+        ByteBuffer next() throws IOException;
+    }
+
+    /**
+     * Hands the file to the codec as memory mapped windows, so no heap copies are made and there is one JNI call per
+     * window instead of one per 32K chunk. Falls back to chunked reads for channels that can't be mapped.
+     */
+    static class FileSource implements ChunkSource
+    {
+        private final FileChannel channel;
+        private ByteBuffer buffer;
+
+        FileSource(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        public ByteBuffer next() throws IOException
+        {
+            if (buffer != null)
+            {
+                return readChunk();
+            }
+            final long position = channel.position();
+            final long size = channel.size();
+            if (position >= size)
+            {
+                return null;
+            }
+            final MappedByteBuffer window;
+            try
+            {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW_SIZE, size - position));
+            }
+            catch (IOException e)
+            {
+                Log.w(DJVU_DROID_CODEC_LIBRARY, "Can't map stream, falling back to chunked read", e);
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                return readChunk();
+            }
+            channel.position(position + window.capacity());
+            return window;
+        }
+
+        private ByteBuffer readChunk() throws IOException
+        {
+            buffer.clear();
+            if (channel.read(buffer) == -1)
+            {
+                return null;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    static class InputStreamSource implements ChunkSource
+    {
+        private final InputStream inputStream;
+        private final SpoolCache.Spool spool;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        InputStreamSource(InputStream inputStream, SpoolCache.Spool spool)
+        {
+            this.inputStream = inputStream;
+            this.spool = spool;
+        }
+
+        public ByteBuffer next() throws IOException
+        {
+            final int c = inputStream.read(bytes);
+            if (c == -1)
+            {
+                if (spool != null)
+                {
+                    spool.commit();
+                }
+                return null;
+            }
+            if (spool != null)
+            {
+                spool.write(bytes, 0, c);
+            }
+            buffer.clear();
             buffer.put(bytes, 0, c);
-            streamWrite(docHandle, streamId, buffer, c);
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    static class BuffersSource implements ChunkSource
+    {
+        private final ByteBuffer[] buffers;
+        private int next;
+
+        BuffersSource(ByteBuffer... buffers)
+        {
+            this.buffers = buffers;
+        }
+
+        public ByteBuffer next()
+        {
+            return next < buffers.length ? buffers[next++] : null;
         }
     }
 
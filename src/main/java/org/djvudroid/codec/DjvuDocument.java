@@ -1,25 +1,40 @@
 package org.djvudroid.codec;
 
-import java.util.HashMap;
-import java.util.concurrent.Semaphore;
-
-public class DjvuDocument
+public class DjvuDocument implements CodecDocument
 {
+    private static final long PAGE_CACHE_MAX_WEIGHT = 16 * 1024 * 1024;
+
     private final long documentHandle;
-    private final HashMap<Integer, DjvuPage> pages = new HashMap<Integer, DjvuPage>();
-    private final Semaphore pagesSemaphore;
-    private final Object waitObject;
+    private final DjvuStreamIndex streamIndex;
+    private final DjvuContext djvuContext;
+    private final PageCache<DjvuPage> pages = new PageCache<DjvuPage>(PAGE_CACHE_MAX_WEIGHT)
+    {
+        @Override
+        protected DjvuPage createPage(int pageNumber)
+        {
+            return openPage(pageNumber);
+        }
 
-    private DjvuDocument(long documentHandle, Semaphore pagesSemaphore, Object waitObject)
+        @Override
+        protected void onRecycled()
+        {
+            // pages still rendering or being opened use the document, so it goes with the last of them
+            djvuContext.documentClosed(documentHandle);
+            free(documentHandle);
+        }
+    };
+    private boolean recycled;
+
+    private DjvuDocument(long documentHandle, DjvuStreamIndex streamIndex, DjvuContext djvuContext)
     {
         this.documentHandle = documentHandle;
-        this.pagesSemaphore = pagesSemaphore;
-        this.waitObject = waitObject;
+        this.streamIndex = streamIndex;
+        this.djvuContext = djvuContext;
     }
 
-    static DjvuDocument openDocument(String uriHash, DjvuContext djvuContext, Semaphore pagesSemaphore, Object waitObject)
+    static DjvuDocument openDocument(String uriHash, DjvuContext djvuContext, DjvuStreamIndex streamIndex)
     {
-        return new DjvuDocument(open(djvuContext.getContextHandle(), uriHash), pagesSemaphore, waitObject);
+        return new DjvuDocument(open(djvuContext.getContextHandle(), uriHash), streamIndex, djvuContext);
     }
 
     private native static long open(long contextHandle, String uri);
@@ -29,37 +44,55 @@ public class DjvuDocument
 
     public DjvuPage getPage(int pageNumber)
     {
-        if (!pages.containsKey(pageNumber))
+        return pages.acquire(pageNumber);
+    }
+
+    public void releasePage(CodecPage page)
+    {
+        pages.release(page);
+    }
+
+    /**
+     * Waits only for this page's data, not for the whole document to be fed to the codec.
+     */
+    private DjvuPage openPage(int pageNumber)
+    {
+        try
         {
-            try
-            {
-                pagesSemaphore.acquire();
-                try
-                {
-                    pages.put(pageNumber, new DjvuPage(getPage(documentHandle, pageNumber), waitObject));
-                }
-                finally
-                {
-                    pagesSemaphore.release();    
-                }
-            }
-            catch (InterruptedException e)
-            {
-                throw new RuntimeException(e);
-            }
+            streamIndex.awaitPage(pageNumber);
         }
-        return pages.get(pageNumber);
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+        final DjvuPage page = new DjvuPage(getPage(documentHandle, pageNumber));
+        djvuContext.watchDecoding(page);
+        return page;
     }
 
     public int getPageCount()
     {
-        return getPageCount(documentHandle);
+        try
+        {
+            final Integer pageCount = streamIndex.awaitPageCount();
+            return pageCount != null ? pageCount : getPageCount(documentHandle);
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
-    @Override
-    protected void finalize() throws Throwable
+    /**
+     * The document itself is freed once the pages pinned at this point are released too.
+     */
+    public synchronized void recycle()
     {
-        free(documentHandle);
-        super.finalize();
+        if (recycled)
+        {
+            return;
+        }
+        recycled = true;
+        pages.recycle();
     }
 }
@@ -1,19 +1,27 @@
 package org.djvudroid.codec;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-public class DjvuPage
+public class DjvuPage implements CodecPage
 {
     private final long pageHandle;
-    private final Object waitObject;
+    private final CountDownLatch decoded = new CountDownLatch(1);
+    private boolean recycled;
+    // the shipped libdjvudroid.so only exports renderPage, see isRegionRenderingSupported()
+    private static volatile boolean regionRenderingProbed;
+    private static volatile boolean regionRenderingSupported;
+    private static final int RENDER_BAND_HEIGHT = 64;
 
-    DjvuPage(long pageHandle, Object waitObject)
+    DjvuPage(long pageHandle)
     {
         this.pageHandle = pageHandle;
-        this.waitObject = waitObject;
     }
 
     public boolean isDecoding()
@@ -29,23 +37,60 @@ public class DjvuPage
 
     private static native boolean renderPage(long pageHandle, int targetWidth, int targetHeight, Buffer buffer);
 
+    private static native boolean renderPageRegion(long pageHandle, int pageWidth, int pageHeight,
+                                                   int left, int top, int width, int height, Buffer buffer);
+
     private static native void free(long pageHandle);
 
-    public void waitForDecode()
+    /**
+     * Whether the codec library renders windows of a page. Without renderPageRegion, which the shipped library
+     * doesn't export, {@link #renderRegion} renders the whole page for every window, so callers render whole pages
+     * instead. Probed once, a racing second probe just gets the same answer.
+     */
+    static boolean isRegionRenderingSupported()
     {
-        synchronized (waitObject)
+        if (!regionRenderingProbed)
         {
             try
             {
-                waitObject.wait(200);
+                // an empty window is turned down before the page handle is looked at
+                renderPageRegion(0, 0, 0, 0, 0, 0, 0, null);
+                regionRenderingSupported = true;
             }
-            catch (InterruptedException e)
+            catch (UnsatisfiedLinkError e)
             {
-                throw new RuntimeException(e);
+                regionRenderingSupported = false;
             }
+            regionRenderingProbed = true;
+        }
+        return regionRenderingSupported;
+    }
+
+    /**
+     * Returns as soon as this page is decoded (or failed), or after 200 ms so the caller can check if it's still needed.
+     */
+    public void waitForDecode()
+    {
+        try
+        {
+            decoded.await(200, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
         }
     }
 
+    synchronized boolean completeIfDecoded()
+    {
+        if (recycled || isDecodingDone(pageHandle))
+        {
+            decoded.countDown();
+            return true;
+        }
+        return false;
+    }
+
     public int getWidth()
     {
         return getWidth(pageHandle);
@@ -56,19 +101,183 @@ public class DjvuPage
         return getHeight(pageHandle);
     }
 
+    public boolean renderPage(int width, int height, ByteBuffer buffer)
+    {
+        return renderPage(pageHandle, width, height, buffer);
+    }
+
+    public boolean renderRegion(int pageWidth, int pageHeight, int left, int top, int width, int height, ByteBuffer buffer)
+    {
+        if (!isWindowValid(pageWidth, pageHeight, left, top, width, height, buffer))
+        {
+            return false;
+        }
+        if (isRegionRenderingSupported())
+        {
+            return renderPageRegion(pageHandle, pageWidth, pageHeight, left, top, width, height, buffer);
+        }
+        if (width == pageWidth && height == pageHeight)
+        {
+            return renderPage(pageHandle, pageWidth, pageHeight, buffer);
+        }
+        final ByteBuffer pageBuffer = RenderPool.getInstance().obtainBuffer(pageWidth * pageHeight * 2);
+        try
+        {
+            if (!renderPage(pageHandle, pageWidth, pageHeight, pageBuffer))
+            {
+                return false;
+            }
+            final ByteBuffer target = buffer.duplicate();
+            target.clear();
+            for (int y = 0; y < height; y++)
+            {
+                final int rowStart = ((top + y) * pageWidth + left) * 2;
+                pageBuffer.limit(rowStart + width * 2);
+                pageBuffer.position(rowStart);
+                target.put(pageBuffer);
+            }
+            return true;
+        }
+        finally
+        {
+            RenderPool.getInstance().recycleBuffer(pageBuffer);
+        }
+    }
+
+    /**
+     * The codec library can't be interrupted inside a render call, so with region rendering each call only covers a
+     * band of rows and cancellation is checked between bands. The shipped library has no region rendering, a band
+     * would cost a whole page render there, so the window is rendered in one call that runs to its end once started.
+     */
+    public boolean renderRegion(int pageWidth, int pageHeight, int left, int top, int width, int height, ByteBuffer buffer,
+                                CancellationToken cancellationToken)
+    {
+        if (!isWindowValid(pageWidth, pageHeight, left, top, width, height, buffer))
+        {
+            return false;
+        }
+        if (!isRegionRenderingSupported())
+        {
+            return !cancellationToken.isCancelled() && renderRegion(pageWidth, pageHeight, left, top, width, height, buffer);
+        }
+        for (int bandTop = 0; bandTop < height; bandTop += RENDER_BAND_HEIGHT)
+        {
+            if (cancellationToken.isCancelled())
+            {
+                return false;
+            }
+            final ByteBuffer band = buffer.duplicate();
+            band.position(bandTop * width * 2);
+            if (!renderRegion(pageWidth, pageHeight, left, top + bandTop, width, Math.min(RENDER_BAND_HEIGHT, height - bandTop), band.slice()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the window lies within the page and its pixels fit in <code>buffer</code>, others aren't rendered.
+     */
+    private static boolean isWindowValid(int pageWidth, int pageHeight, int left, int top, int width, int height,
+                                         ByteBuffer buffer)
+    {
+        return left >= 0 && top >= 0 && width > 0 && height > 0 && left + width <= pageWidth && top + height <= pageHeight
+                && buffer.capacity() >= width * height * 2;
+    }
+
     public Bitmap renderBitmap(int width, int height)
     {
-        final ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 2);
-        renderPage(pageHandle, width, height, buffer);
-        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-        bitmap.copyPixelsFromBuffer(buffer);
+        final Bitmap bitmap = RenderPool.getInstance().obtainBitmap(width, height);
+        if (!renderBitmap(width, height, 0, 0, bitmap, CancellationToken.NOT_CANCELLABLE, null))
+        {
+            RenderPool.getInstance().recycleBitmap(bitmap);
+            return null;
+        }
         return bitmap;
     }
 
-    @Override
-    protected void finalize() throws Throwable
+    public boolean renderBitmap(int pageWidth, int pageHeight, int left, int top, Bitmap bitmap,
+                                CancellationToken cancellationToken, RenderListener renderListener)
     {
+        if (!isRegionRenderingSupported())
+        {
+            return renderWholeBitmap(pageWidth, pageHeight, left, top, bitmap, cancellationToken);
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int bandCapacity = Math.min(RENDER_BAND_HEIGHT, height);
+        final RenderPool renderPool = RenderPool.getInstance();
+        final Bitmap band = renderPool.obtainBitmap(width, bandCapacity);
+        final ByteBuffer buffer = renderPool.obtainBuffer(width * bandCapacity * 2);
+        final Canvas canvas = new Canvas(bitmap);
+        final Rect bandRect = new Rect();
+        final Rect bitmapRect = new Rect();
+        try
+        {
+            for (int bandTop = 0; bandTop < height; bandTop += bandCapacity)
+            {
+                if (cancellationToken.isCancelled())
+                {
+                    return false;
+                }
+                final int bandHeight = Math.min(bandCapacity, height - bandTop);
+                if (!renderRegion(pageWidth, pageHeight, left, top + bandTop, width, bandHeight, buffer))
+                {
+                    return false;
+                }
+                buffer.rewind();
+                band.copyPixelsFromBuffer(buffer);
+                bandRect.set(0, 0, width, bandHeight);
+                bitmapRect.set(0, bandTop, width, bandTop + bandHeight);
+                canvas.drawBitmap(band, bandRect, bitmapRect, null);
+                if (renderListener != null)
+                {
+                    renderListener.bandRendered(bitmap, bandTop + bandHeight);
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            renderPool.recycleBitmap(band);
+            renderPool.recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * Without region rendering each band would cost a whole page render, so the window is rendered in a single call
+     * through one window sized buffer. There are no bands to show meanwhile and no cancelling once it has started.
+     */
+    private boolean renderWholeBitmap(int pageWidth, int pageHeight, int left, int top, Bitmap bitmap,
+                                      CancellationToken cancellationToken)
+    {
+        final RenderPool renderPool = RenderPool.getInstance();
+        final ByteBuffer buffer = renderPool.obtainBuffer(bitmap.getWidth() * bitmap.getHeight() * 2);
+        try
+        {
+            if (cancellationToken.isCancelled()
+                    || !renderRegion(pageWidth, pageHeight, left, top, bitmap.getWidth(), bitmap.getHeight(), buffer))
+            {
+                return false;
+            }
+            buffer.rewind();
+            bitmap.copyPixelsFromBuffer(buffer);
+            return true;
+        }
+        finally
+        {
+            renderPool.recycleBuffer(buffer);
+        }
+    }
+
+    public synchronized void recycle()
+    {
+        if (recycled)
+        {
+            return;
+        }
         free(pageHandle);
-        super.finalize();
+        recycled = true;
     }
 }
@@ -0,0 +1,173 @@
+package org.djvudroid.codec;
+
+import android.util.Log;
+import com.lizardtech.djvu.CachedInputStream;
+import com.lizardtech.djvu.DjVmDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Follows a document's bytes as they are fed to the codec and tells when a page's data has arrived. Page offsets come
+ * from the DIRM directory at the start of bundled documents, a single page document is ready once its only FORM is in.
+ * Pages of indirect documents are ready with the directory, the codec asks for their components itself. For anything
+ * else pages are only ready once the whole stream is.
+ */
+class DjvuStreamIndex
+{
+    private static final String DJVU_DROID_CODEC_LIBRARY = "DjvuDroidCodecLibrary";
+    // AT&T, FORM, size, form type, then DIRM and its size for DJVM
+    private static final int DIRM_DATA_OFFSET = 24;
+    private static final int MAX_DIRM_SIZE = 1024 * 1024;
+
+    private byte[] head = new byte[4096];
+    private int headLength;
+    private boolean headParsed;
+    private long fedBytes;
+    private boolean finished;
+    private long[] pageEnds;
+
+    synchronized void fed(ByteBuffer data, int length)
+    {
+        if (!headParsed)
+        {
+            collectHead(data, length);
+        }
+        fedBytes += length;
+        notifyAll();
+    }
+
+    synchronized void finished()
+    {
+        finished = true;
+        headParsed = true;
+        head = null;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the directory, null means the page count has to come from the codec once the whole stream is in.
+     */
+    synchronized Integer awaitPageCount() throws InterruptedException
+    {
+        while (pageEnds == null && !finished)
+        {
+            wait();
+        }
+        return pageEnds != null ? Integer.valueOf(pageEnds.length) : null;
+    }
+
+    synchronized void awaitPage(int pageNumber) throws InterruptedException
+    {
+        while (!finished && (pageEnds == null || pageNumber >= pageEnds.length || fedBytes < pageEnds[pageNumber]))
+        {
+            wait();
+        }
+    }
+
+    private void collectHead(ByteBuffer data, int length)
+    {
+        final ByteBuffer source = data.duplicate();
+        source.rewind();
+        source.limit(length);
+        while (!headParsed && source.hasRemaining())
+        {
+            final int needed = getNeededHeadLength();
+            if (needed > head.length)
+            {
+                final byte[] grown = new byte[needed];
+                System.arraycopy(head, 0, grown, 0, headLength);
+                head = grown;
+            }
+            final int count = Math.min(source.remaining(), needed - headLength);
+            source.get(head, headLength, count);
+            headLength += count;
+            if (headLength == needed)
+            {
+                parseHead();
+            }
+        }
+    }
+
+    /**
+     * The fixed headers first, then for DJVM the whole DIRM chunk whose size they give.
+     */
+    private int getNeededHeadLength()
+    {
+        if (headLength < DIRM_DATA_OFFSET)
+        {
+            return DIRM_DATA_OFFSET;
+        }
+        return DIRM_DATA_OFFSET + readInt(20);
+    }
+
+    private void parseHead()
+    {
+        if (!matches(0, "AT&TFORM"))
+        {
+            giveUp("not a DjVu file");
+            return;
+        }
+        if (matches(12, "DJVU"))
+        {
+            // AT&T, FORM and its size, then the FORM itself
+            pageEnds = new long[]{12 + readInt(8)};
+            headParsed = true;
+            return;
+        }
+        if (!matches(12, "DJVM") || !matches(16, "DIRM") || readInt(20) < 0 || readInt(20) > MAX_DIRM_SIZE)
+        {
+            giveUp("unknown document layout");
+            return;
+        }
+        if (headLength < DIRM_DATA_OFFSET + readInt(20))
+        {
+            return;
+        }
+        try
+        {
+            final DjVmDir dir = new DjVmDir();
+            dir.decode(new CachedInputStream().init(new ByteArrayInputStream(head, DIRM_DATA_OFFSET, readInt(20))));
+            final long[] ends = new long[dir.get_pages_num()];
+            for (int i = 0; dir.is_bundled() && i < ends.length; i++)
+            {
+                // a page the directory has no file for waits for the whole stream
+                final DjVmDir.File file = dir.page_to_file(i);
+                ends[i] = file != null ? file.offset + file.size : Long.MAX_VALUE;
+            }
+            pageEnds = ends;
+        }
+        catch (IOException e)
+        {
+            Log.w(DJVU_DROID_CODEC_LIBRARY, "Can't read document directory", e);
+        }
+        headParsed = true;
+        head = null;
+    }
+
+    private void giveUp(String reason)
+    {
+        Log.d(DJVU_DROID_CODEC_LIBRARY, "Pages wait for the whole stream: " + reason);
+        headParsed = true;
+        head = null;
+    }
+
+    private boolean matches(int offset, String tag)
+    {
+        for (int i = 0; i < tag.length(); i++)
+        {
+            if (head[offset + i] != tag.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readInt(int offset)
+    {
+        return ((head[offset] & 0xFF) << 24) | ((head[offset + 1] & 0xFF) << 16) | ((head[offset + 2] & 0xFF) << 8)
+                | (head[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,64 @@
+package org.djvudroid.codec;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import com.lizardtech.djvu.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pure-Java backend built on the bundled javadjvu decoder. It needs neither <code>libdjvudroid.so</code>
+ * nor a device, so the whole decode/render pipeline can be profiled on a desktop JVM.
+ */
+public class JavaDjvuContext implements CodecContext
+{
+    private ContentResolver contentResolver;
+
+    public CodecDocument openDocument(Uri uri, String documentId)
+    {
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = contentResolver.openInputStream(uri);
+            // not mapped like the native backend's files, javadjvu copies all it reads to the heap anyway
+            return openDocument(inputStream);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    public CodecDocument openDocument(InputStream inputStream) throws IOException
+    {
+        final Document document = new Document();
+        document.setAsync(false);
+        document.read(inputStream);
+        return new JavaDjvuDocument(document);
+    }
+
+    public void setContentResolver(ContentResolver contentResolver)
+    {
+        this.contentResolver = contentResolver;
+    }
+
+    public boolean isRegionRenderingSupported()
+    {
+        return true;
+    }
+}
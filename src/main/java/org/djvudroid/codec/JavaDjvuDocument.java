@@ -0,0 +1,53 @@
+package org.djvudroid.codec;
+
+import com.lizardtech.djvu.DjVuPage;
+import com.lizardtech.djvu.Document;
+
+import java.io.IOException;
+
+public class JavaDjvuDocument implements CodecDocument
+{
+    private static final long PAGE_CACHE_MAX_WEIGHT = 16 * 1024 * 1024;
+
+    private final Document document;
+    private final PageCache<JavaDjvuPage> pages = new PageCache<JavaDjvuPage>(PAGE_CACHE_MAX_WEIGHT)
+    {
+        @Override
+        protected JavaDjvuPage createPage(int pageNumber)
+        {
+            try
+            {
+                return new JavaDjvuPage(document.getPage(pageNumber, DjVuPage.MAX_PRIORITY, true));
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    JavaDjvuDocument(Document document)
+    {
+        this.document = document;
+    }
+
+    public JavaDjvuPage getPage(int pageNumber)
+    {
+        return pages.acquire(pageNumber);
+    }
+
+    public void releasePage(CodecPage page)
+    {
+        pages.release(page);
+    }
+
+    public int getPageCount()
+    {
+        return document.size();
+    }
+
+    public void recycle()
+    {
+        pages.recycle();
+    }
+}
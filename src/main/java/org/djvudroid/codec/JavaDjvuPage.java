@@ -0,0 +1,210 @@
+package org.djvudroid.codec;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import com.lizardtech.djvu.DjVuInfo;
+import com.lizardtech.djvu.DjVuPage;
+import com.lizardtech.djvu.GMap;
+import com.lizardtech.djvu.GRect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+public class JavaDjvuPage implements CodecPage
+{
+    private final DjVuPage page;
+    private static final int RENDER_BAND_HEIGHT = 64;
+
+    JavaDjvuPage(DjVuPage page)
+    {
+        this.page = page;
+    }
+
+    public boolean isDecoding()
+    {
+        return page.isDecoding();
+    }
+
+    public void waitForDecode()
+    {
+        page.waitForCodec(page.doneLock, 200L);
+    }
+
+    public int getWidth()
+    {
+        final DjVuInfo info = page.getInfoWait();
+        return info != null ? info.width : 0;
+    }
+
+    public int getHeight()
+    {
+        final DjVuInfo info = page.getInfoWait();
+        return info != null ? info.height : 0;
+    }
+
+    public boolean renderPage(int width, int height, ByteBuffer buffer)
+    {
+        return renderRegion(width, height, 0, 0, width, height, buffer);
+    }
+
+    public boolean renderRegion(int pageWidth, int pageHeight, int left, int top, int width, int height, ByteBuffer buffer)
+    {
+        final DjVuInfo info = page.getInfoWait();
+        if (info == null || !isWindowValid(pageWidth, pageHeight, left, top, width, height, buffer))
+        {
+            return false;
+        }
+        // javadjvu only decodes at integer subsample rates, so decode at the nearest finer one and resample
+        final int subsample = Math.max(1, Math.min(info.width / pageWidth, info.height / pageHeight));
+        final int mapWidth = (info.width + subsample - 1) / subsample;
+        final int mapHeight = (info.height + subsample - 1) / subsample;
+        final int mapLeft = left * mapWidth / pageWidth;
+        final int mapTop = top * mapHeight / pageHeight;
+        final int mapRight = Math.min(mapWidth, ((left + width) * mapWidth + pageWidth - 1) / pageWidth);
+        final int mapBottom = Math.min(mapHeight, ((top + height) * mapHeight + pageHeight - 1) / pageHeight);
+        if (mapRight <= mapLeft || mapBottom <= mapTop)
+        {
+            return false;
+        }
+        // GRect counts rows from the bottom of the page
+        final GRect mapRect = new GRect(mapLeft, mapHeight - mapBottom, mapRight - mapLeft, mapBottom - mapTop);
+        final GMap map = page.getMap(mapRect, subsample, null);
+        if (map == null)
+        {
+            return false;
+        }
+        final int columns = map.columns();
+        final int rows = map.rows();
+        final int[] sourceXs = new int[width];
+        for (int x = 0; x < width; x++)
+        {
+            sourceXs[x] = clamp((left + x) * mapWidth / pageWidth - mapLeft, columns);
+        }
+        final int[] sourceRow = new int[columns];
+        final short[] targetRow = new short[width];
+        final ByteBuffer bytes = buffer.duplicate();
+        bytes.rewind();
+        final ShortBuffer target = bytes.order(ByteOrder.nativeOrder()).asShortBuffer();
+        int lastSourceY = -1;
+        for (int y = 0; y < height; y++)
+        {
+            final int sourceY = clamp((top + y) * mapHeight / pageHeight - mapTop, rows);
+            if (sourceY != lastSourceY)
+            {
+                map.fillRGBPixels(0, sourceY, columns, 1, sourceRow, 0, columns);
+                for (int x = 0; x < width; x++)
+                {
+                    targetRow[x] = toRgb565(sourceRow[sourceXs[x]]);
+                }
+                lastSourceY = sourceY;
+            }
+            target.put(targetRow);
+        }
+        return true;
+    }
+
+    public boolean renderRegion(int pageWidth, int pageHeight, int left, int top, int width, int height, ByteBuffer buffer,
+                                CancellationToken cancellationToken)
+    {
+        if (!isWindowValid(pageWidth, pageHeight, left, top, width, height, buffer))
+        {
+            return false;
+        }
+        for (int bandTop = 0; bandTop < height; bandTop += RENDER_BAND_HEIGHT)
+        {
+            if (cancellationToken.isCancelled())
+            {
+                return false;
+            }
+            final ByteBuffer band = buffer.duplicate();
+            band.position(bandTop * width * 2);
+            if (!renderRegion(pageWidth, pageHeight, left, top + bandTop, width, Math.min(RENDER_BAND_HEIGHT, height - bandTop), band.slice()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the window lies within the page and its pixels fit in <code>buffer</code>, others aren't rendered.
+     */
+    private static boolean isWindowValid(int pageWidth, int pageHeight, int left, int top, int width, int height,
+                                         ByteBuffer buffer)
+    {
+        return left >= 0 && top >= 0 && width > 0 && height > 0 && left + width <= pageWidth && top + height <= pageHeight
+                && buffer.capacity() >= width * height * 2;
+    }
+
+    private static int clamp(int index, int size)
+    {
+        return Math.max(0, Math.min(index, size - 1));
+    }
+
+    private static short toRgb565(int argb)
+    {
+        return (short) (((argb >> 8) & 0xF800) | ((argb >> 5) & 0x07E0) | ((argb >> 3) & 0x001F));
+    }
+
+    public Bitmap renderBitmap(int width, int height)
+    {
+        final Bitmap bitmap = RenderPool.getInstance().obtainBitmap(width, height);
+        if (!renderBitmap(width, height, 0, 0, bitmap, CancellationToken.NOT_CANCELLABLE, null))
+        {
+            RenderPool.getInstance().recycleBitmap(bitmap);
+            return null;
+        }
+        return bitmap;
+    }
+
+    public boolean renderBitmap(int pageWidth, int pageHeight, int left, int top, Bitmap bitmap,
+                                CancellationToken cancellationToken, RenderListener renderListener)
+    {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int bandCapacity = Math.min(RENDER_BAND_HEIGHT, height);
+        final RenderPool renderPool = RenderPool.getInstance();
+        final Bitmap band = renderPool.obtainBitmap(width, bandCapacity);
+        final ByteBuffer buffer = renderPool.obtainBuffer(width * bandCapacity * 2);
+        final Canvas canvas = new Canvas(bitmap);
+        final Rect bandRect = new Rect();
+        final Rect bitmapRect = new Rect();
+        try
+        {
+            for (int bandTop = 0; bandTop < height; bandTop += bandCapacity)
+            {
+                if (cancellationToken.isCancelled())
+                {
+                    return false;
+                }
+                final int bandHeight = Math.min(bandCapacity, height - bandTop);
+                if (!renderRegion(pageWidth, pageHeight, left, top + bandTop, width, bandHeight, buffer))
+                {
+                    return false;
+                }
+                buffer.rewind();
+                band.copyPixelsFromBuffer(buffer);
+                bandRect.set(0, 0, width, bandHeight);
+                bitmapRect.set(0, bandTop, width, bandTop + bandHeight);
+                canvas.drawBitmap(band, bandRect, bitmapRect, null);
+                if (renderListener != null)
+                {
+                    renderListener.bandRendered(bitmap, bandTop + bandHeight);
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            renderPool.recycleBitmap(band);
+            renderPool.recycleBuffer(buffer);
+        }
+    }
+
+    public void recycle()
+    {
+        // javadjvu pages live on the java heap, nothing to free explicitly
+    }
+}
@@ -0,0 +1,216 @@
+package org.djvudroid.codec;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * LRU cache of open pages bounded by their estimated decoded footprint. Pages handed out by {@link #acquire} are
+ * pinned and never evicted until {@link #release}d. Evicted pages are {@link CodecPage#recycle}d right away instead of
+ * waiting for the GC. Safe to use from the decode and UI threads at the same time.
+ * <p/>
+ * Once recycled, pages still pinned or being opened keep whatever they are opened from alive until
+ * {@link #onRecycled} says the last of them is gone.
+ */
+abstract class PageCache<T extends CodecPage>
+{
+    private static final long UNDECODED_PAGE_WEIGHT = 1024 * 1024;
+
+    private final LinkedHashMap<Integer, Entry<T>> entries = new LinkedHashMap<Integer, Entry<T>>(16, 0.75f, true);
+    private final long maxWeight;
+    private long weight;
+    private boolean recycled;
+    private int openingCount;
+    private boolean drained;
+
+    PageCache(long maxWeight)
+    {
+        this.maxWeight = maxWeight;
+    }
+
+    protected abstract T createPage(int pageNumber);
+
+    /**
+     * Called once, without the cache's lock held, when the cache is recycled and no page is pinned or being opened
+     * anymore.
+     */
+    protected void onRecycled()
+    {
+    }
+
+    T acquire(int pageNumber)
+    {
+        synchronized (this)
+        {
+            checkNotRecycled();
+            final Entry<T> entry = entries.get(pageNumber);
+            if (entry != null)
+            {
+                entry.pins++;
+                return entry.page;
+            }
+            openingCount++;
+        }
+        try
+        {
+            // opening a page may block until the document data arrives, so don't hold the lock meanwhile
+            return add(pageNumber, createPage(pageNumber));
+        }
+        finally
+        {
+            final boolean lastGone;
+            synchronized (this)
+            {
+                openingCount--;
+                lastGone = drain();
+            }
+            if (lastGone)
+            {
+                onRecycled();
+            }
+        }
+    }
+
+    private synchronized T add(int pageNumber, T page)
+    {
+        if (recycled)
+        {
+            page.recycle();
+            checkNotRecycled();
+        }
+        final Entry<T> entry = entries.get(pageNumber);
+        if (entry != null)
+        {
+            // another thread opened the same page meanwhile
+            page.recycle();
+            entry.pins++;
+            return entry.page;
+        }
+        final Entry<T> newEntry = new Entry<T>(page);
+        entries.put(pageNumber, newEntry);
+        weight += newEntry.weight;
+        trim();
+        return page;
+    }
+
+    void release(CodecPage page)
+    {
+        final boolean lastGone;
+        synchronized (this)
+        {
+            lastGone = unpin(page);
+        }
+        if (lastGone)
+        {
+            onRecycled();
+        }
+    }
+
+    /**
+     * @return whether that was the last page of the recycled cache
+     */
+    private boolean unpin(CodecPage page)
+    {
+        for (Iterator<Entry<T>> iterator = entries.values().iterator(); iterator.hasNext();)
+        {
+            final Entry<T> entry = iterator.next();
+            if (entry.page != page)
+            {
+                continue;
+            }
+            entry.pins--;
+            if (recycled && entry.pins == 0)
+            {
+                iterator.remove();
+                page.recycle();
+                return drain();
+            }
+            weight -= entry.weight;
+            entry.weight = weigh(entry.page);
+            weight += entry.weight;
+            break;
+        }
+        trim();
+        return false;
+    }
+
+    void recycle()
+    {
+        final boolean lastGone;
+        synchronized (this)
+        {
+            recycled = true;
+            for (Iterator<Entry<T>> iterator = entries.values().iterator(); iterator.hasNext();)
+            {
+                final Entry<T> entry = iterator.next();
+                if (entry.pins == 0)
+                {
+                    iterator.remove();
+                    entry.page.recycle();
+                }
+            }
+            lastGone = drain();
+        }
+        if (lastGone)
+        {
+            onRecycled();
+        }
+    }
+
+    /**
+     * @return true the one time the recycled cache is found with no pages left
+     */
+    private boolean drain()
+    {
+        if (!recycled || drained || !entries.isEmpty() || openingCount > 0)
+        {
+            return false;
+        }
+        drained = true;
+        return true;
+    }
+
+    private void trim()
+    {
+        for (Iterator<Entry<T>> iterator = entries.values().iterator(); weight > maxWeight && iterator.hasNext();)
+        {
+            final Entry<T> entry = iterator.next();
+            if (entry.pins > 0)
+            {
+                continue;
+            }
+            iterator.remove();
+            weight -= entry.weight;
+            entry.page.recycle();
+        }
+    }
+
+    private void checkNotRecycled()
+    {
+        if (recycled)
+        {
+            throw new IllegalStateException("Document is recycled");
+        }
+    }
+
+    private static long weigh(CodecPage page)
+    {
+        if (page.isDecoding())
+        {
+            return UNDECODED_PAGE_WEIGHT;
+        }
+        // decoded masks and wavelet data take about a byte per page pixel
+        return (long) page.getWidth() * page.getHeight();
+    }
+
+    private static class Entry<T extends CodecPage>
+    {
+        private final T page;
+        private int pins = 1;
+        private long weight = UNDECODED_PAGE_WEIGHT;
+
+        private Entry(T page)
+        {
+            this.page = page;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.djvudroid.codec;
+
+/**
+ * What a page's <code>INFO</code> chunk and chunk list tell without decoding it.
+ */
+public class PageInfo
+{
+    private final int width;
+    private final int height;
+    private final int dpi;
+    private final int rotation;
+    private final boolean bitonal;
+
+    public PageInfo(int width, int height, int dpi, int rotation, boolean bitonal)
+    {
+        this.width = width;
+        this.height = height;
+        this.dpi = dpi;
+        this.rotation = rotation;
+        this.bitonal = bitonal;
+    }
+
+    /**
+     * Width as stored, before rotation.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getDpi()
+    {
+        return dpi;
+    }
+
+    /**
+     * Counter-clockwise, 0, 90, 180 or 270 degrees.
+     */
+    public int getRotation()
+    {
+        return rotation;
+    }
+
+    /**
+     * True for pages with a mask only, false as soon as there is a background or coloured foreground.
+     */
+    public boolean isBitonal()
+    {
+        return bitonal;
+    }
+
+    /**
+     * Width over height as the page is displayed, rotation included.
+     */
+    public float getAspectRatio()
+    {
+        return rotation % 180 == 0 ? width * 1.0f / height : height * 1.0f / width;
+    }
+}
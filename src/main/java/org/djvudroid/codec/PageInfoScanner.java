@@ -0,0 +1,150 @@
+package org.djvudroid.codec;
+
+import com.lizardtech.djvu.CachedInputStream;
+import com.lizardtech.djvu.DjVmDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects the {@link PageInfo} of every page of a local file by walking chunk headers, only <code>INFO</code> chunks
+ * are read whole. Bundled and single page documents are supported, indirect ones have their pages in other files.
+ */
+public class PageInfoScanner
+{
+    private static final int DEFAULT_DPI = 300;
+    private static final int MAX_DIRM_SIZE = 1024 * 1024;
+
+    /**
+     * @return null if the document layout isn't supported
+     */
+    public static PageInfo[] scan(FileChannel channel) throws IOException
+    {
+        final ByteBuffer header = read(channel, 0, 24);
+        if (header == null || !matches(header, 0, "AT&TFORM"))
+        {
+            return null;
+        }
+        if (matches(header, 12, "DJVU"))
+        {
+            final PageInfo pageInfo = scanPage(channel, 4);
+            return pageInfo != null ? new PageInfo[]{pageInfo} : null;
+        }
+        final int dirmSize = header.getInt(20);
+        if (!matches(header, 12, "DJVM") || !matches(header, 16, "DIRM") || dirmSize < 0 || dirmSize > MAX_DIRM_SIZE)
+        {
+            return null;
+        }
+        final ByteBuffer dirm = read(channel, 24, dirmSize);
+        if (dirm == null)
+        {
+            return null;
+        }
+        final DjVmDir dir = new DjVmDir();
+        dir.decode(new CachedInputStream().init(new ByteArrayInputStream(dirm.array())));
+        if (!dir.is_bundled())
+        {
+            return null;
+        }
+        final PageInfo[] pageInfos = new PageInfo[dir.get_pages_num()];
+        for (int i = 0; i < pageInfos.length; i++)
+        {
+            // a directory that lists fewer page files than it counts pages has no file for the rest
+            final DjVmDir.File file = dir.page_to_file(i);
+            pageInfos[i] = file != null ? scanPage(channel, file.offset) : null;
+            if (pageInfos[i] == null)
+            {
+                return null;
+            }
+        }
+        return pageInfos;
+    }
+
+    private static PageInfo scanPage(FileChannel channel, long formOffset) throws IOException
+    {
+        final ByteBuffer formHeader = read(channel, formOffset, 12);
+        if (formHeader == null || !matches(formHeader, 0, "FORM") || !matches(formHeader, 8, "DJVU"))
+        {
+            return null;
+        }
+        final long formEnd = formOffset + 8 + (formHeader.getInt(4) & 0xFFFFFFFFL);
+        ByteBuffer info = null;
+        boolean colour = false;
+        for (long chunkOffset = formOffset + 12; chunkOffset + 8 <= formEnd;)
+        {
+            final ByteBuffer chunkHeader = read(channel, chunkOffset, 8);
+            if (chunkHeader == null)
+            {
+                break;
+            }
+            final long chunkSize = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+            if (info == null && matches(chunkHeader, 0, "INFO"))
+            {
+                info = read(channel, chunkOffset + 8, (int) Math.min(chunkSize, 10));
+            }
+            colour |= matches(chunkHeader, 0, "BG") || matches(chunkHeader, 0, "FG");
+            chunkOffset += 8 + chunkSize + (chunkSize & 1);
+        }
+        if (info == null || info.limit() < 4)
+        {
+            return null;
+        }
+        final int width = info.getShort(0) & 0xFFFF;
+        final int height = info.getShort(2) & 0xFFFF;
+        // dpi is the only little endian field of the format
+        int dpi = info.limit() >= 8 ? (info.get(6) & 0xFF) | ((info.get(7) & 0xFF) << 8) : DEFAULT_DPI;
+        if (dpi < 25 || dpi > 6000)
+        {
+            dpi = DEFAULT_DPI;
+        }
+        final int rotation = info.limit() >= 10 ? getRotation(info.get(9) & 0x07) : 0;
+        return new PageInfo(width, height, dpi, rotation, !colour);
+    }
+
+    private static int getRotation(int flags)
+    {
+        switch (flags)
+        {
+            case 6:
+                return 90;
+            case 2:
+                return 180;
+            case 5:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+    {
+        if (position < 0 || position + length > channel.size())
+        {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                return null;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, String tag)
+    {
+        for (int i = 0; i < tag.length(); i++)
+        {
+            if (buffer.get(offset + i) != tag.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
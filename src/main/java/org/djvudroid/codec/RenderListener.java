@@ -0,0 +1,14 @@
+package org.djvudroid.codec;
+
+import android.graphics.Bitmap;
+
+/**
+ * Told about each band a banded render has drawn, on the rendering thread.
+ */
+public interface RenderListener
+{
+    /**
+     * Rows above <code>renderedHeight</code> of <code>bitmap</code> are final.
+     */
+    void bandRendered(Bitmap bitmap, int renderedHeight);
+}
@@ -0,0 +1,157 @@
+package org.djvudroid.codec;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Reuses the direct buffers and <code>RGB_565</code> bitmaps of the render path so scrolling doesn't keep the garbage
+ * collector busy. Buffers are bucketed by power of two capacity, bitmaps by exact size as they can't be resized.
+ * Whatever doesn't fit in the byte budgets is dropped. Dropped bitmaps are left to the garbage collector rather than
+ * recycled, a view may still hold one it was handed before.
+ */
+public class RenderPool
+{
+    private static final RenderPool instance = new RenderPool();
+
+    private static final long MAX_BUFFER_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_BITMAP_BYTES = 8 * 1024 * 1024;
+    private static final int MIN_BUFFER_CAPACITY = 4 * 1024;
+
+    private final Map<Integer, LinkedList<ByteBuffer>> buffers = new HashMap<Integer, LinkedList<ByteBuffer>>();
+    private final Map<Long, LinkedList<Bitmap>> bitmaps = new HashMap<Long, LinkedList<Bitmap>>();
+    private long bufferBytes;
+    private long bitmapBytes;
+    private int bufferHits;
+    private int bufferMisses;
+    private int bitmapHits;
+    private int bitmapMisses;
+
+    public static RenderPool getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @return a direct buffer with at least <code>capacity</code> bytes, positioned at 0 and limited to
+     *         <code>capacity</code>
+     */
+    public synchronized ByteBuffer obtainBuffer(int capacity)
+    {
+        final int bucket = getBucket(capacity);
+        final LinkedList<ByteBuffer> pooled = buffers.get(bucket);
+        final ByteBuffer buffer;
+        if (pooled != null && !pooled.isEmpty())
+        {
+            buffer = pooled.removeFirst();
+            bufferBytes -= buffer.capacity();
+            bufferHits++;
+        }
+        else
+        {
+            buffer = ByteBuffer.allocateDirect(bucket);
+            bufferMisses++;
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    public synchronized void recycleBuffer(ByteBuffer buffer)
+    {
+        if (bufferBytes + buffer.capacity() > MAX_BUFFER_BYTES)
+        {
+            return;
+        }
+        LinkedList<ByteBuffer> pooled = buffers.get(buffer.capacity());
+        if (pooled == null)
+        {
+            pooled = new LinkedList<ByteBuffer>();
+            buffers.put(buffer.capacity(), pooled);
+        }
+        pooled.addFirst(buffer);
+        bufferBytes += buffer.capacity();
+    }
+
+    /**
+     * @return a mutable <code>RGB_565</code> bitmap, its pixels are whatever its last user left in it
+     */
+    public synchronized Bitmap obtainBitmap(int width, int height)
+    {
+        final LinkedList<Bitmap> pooled = bitmaps.get(getKey(width, height));
+        if (pooled != null && !pooled.isEmpty())
+        {
+            final Bitmap bitmap = pooled.removeFirst();
+            bitmapBytes -= sizeOf(bitmap);
+            bitmapHits++;
+            return bitmap;
+        }
+        bitmapMisses++;
+        return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Takes over a bitmap nobody draws anymore, it must not be used after this call.
+     */
+    public synchronized void recycleBitmap(Bitmap bitmap)
+    {
+        if (bitmap.isRecycled())
+        {
+            return;
+        }
+        if (bitmap.getConfig() != Bitmap.Config.RGB_565 || bitmapBytes + sizeOf(bitmap) > MAX_BITMAP_BYTES)
+        {
+            return;
+        }
+        final Long key = getKey(bitmap.getWidth(), bitmap.getHeight());
+        LinkedList<Bitmap> pooled = bitmaps.get(key);
+        if (pooled == null)
+        {
+            pooled = new LinkedList<Bitmap>();
+            bitmaps.put(key, pooled);
+        }
+        pooled.addFirst(bitmap);
+        bitmapBytes += sizeOf(bitmap);
+    }
+
+    /**
+     * Drops everything pooled, for when the document is closed and the sizes it used won't come back.
+     */
+    public synchronized void clear()
+    {
+        bitmaps.clear();
+        buffers.clear();
+        bitmapBytes = 0;
+        bufferBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "RenderPool{bitmaps " + bitmapHits + " hits/" + bitmapMisses + " misses, buffers " + bufferHits + " hits/"
+                + bufferMisses + " misses, pooled " + bitmapBytes + " + " + bufferBytes + " bytes}";
+    }
+
+    private static int getBucket(int capacity)
+    {
+        int bucket = MIN_BUFFER_CAPACITY;
+        while (bucket < capacity)
+        {
+            bucket <<= 1;
+        }
+        return bucket;
+    }
+
+    private static Long getKey(int width, int height)
+    {
+        return ((long) width << 32) | height;
+    }
+
+    private static long sizeOf(Bitmap bitmap)
+    {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
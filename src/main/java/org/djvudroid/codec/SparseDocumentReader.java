@@ -0,0 +1,165 @@
+package org.djvudroid.codec;
+
+import com.lizardtech.djvu.CachedInputStream;
+import com.lizardtech.djvu.DjVmDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Presents a bundled document to the codec as an indirect one, so the codec asks for each component (page, shared
+ * dictionary, annotations...) when it needs it and only those byte ranges of the file are read. The main stream is
+ * the bundled document's DIRM rewritten without the offsets, plus its NAVM outline; the bundled and indirect
+ * directories share the same compressed part, so nothing has to be re-encoded.
+ */
+class SparseDocumentReader
+{
+    private static final int DIRM_DATA_OFFSET = 24;
+    private static final int MAX_DIRM_SIZE = 1024 * 1024;
+    private static final int MAX_NAVM_SIZE = 1024 * 1024;
+    private static final byte[] MAGIC = {'A', 'T', '&', 'T'};
+
+    private final ByteBuffer indirectHead;
+    private final Map<String, int[]> componentRanges = new HashMap<String, int[]>();
+
+    private SparseDocumentReader(ByteBuffer indirectHead)
+    {
+        this.indirectHead = indirectHead;
+    }
+
+    /**
+     * @return null if the file isn't a bundled multi page document
+     */
+    static SparseDocumentReader read(FileChannel channel) throws IOException
+    {
+        final ByteBuffer header = readFully(channel, 0, DIRM_DATA_OFFSET);
+        if (header == null || !matches(header, 0, "AT&TFORM") || !matches(header, 12, "DJVM") || !matches(header, 16, "DIRM"))
+        {
+            return null;
+        }
+        final int dirmSize = header.getInt(20);
+        if (dirmSize < 3 || dirmSize > MAX_DIRM_SIZE)
+        {
+            return null;
+        }
+        final ByteBuffer dirm = readFully(channel, DIRM_DATA_OFFSET, dirmSize);
+        if (dirm == null)
+        {
+            return null;
+        }
+        final byte[] dirmBytes = new byte[dirmSize];
+        dirm.get(dirmBytes);
+        final DjVmDir dir = new DjVmDir();
+        dir.decode(new CachedInputStream().init(new ByteArrayInputStream(dirmBytes)));
+        if (!dir.is_bundled())
+        {
+            return null;
+        }
+        final int fileCount = dir.get_files_num();
+        // version 0 directories keep a 3 bytes size next to each 4 bytes offset
+        final int bundledEntrySize = (dirmBytes[0] & 0x7f) == 0 ? 7 : 4;
+        final int compressedStart = 3 + fileCount * bundledEntrySize;
+        final int indirectDirmSize = dirmSize - fileCount * bundledEntrySize;
+
+        final ByteBuffer navm = readNavm(channel, DIRM_DATA_OFFSET + dirmSize + (dirmSize & 1));
+        final int formSize = 4 + 8 + indirectDirmSize + (indirectDirmSize & 1) + (navm != null ? navm.remaining() : 0);
+        final ByteBuffer head = ByteBuffer.allocateDirect(12 + formSize);
+        head.put(MAGIC).put(new byte[]{'F', 'O', 'R', 'M'}).putInt(formSize).put(new byte[]{'D', 'J', 'V', 'M'});
+        head.put(new byte[]{'D', 'I', 'R', 'M'}).putInt(indirectDirmSize);
+        head.put((byte) (dirmBytes[0] & 0x7f)).put(dirmBytes[1]).put(dirmBytes[2]);
+        head.put(dirmBytes, compressedStart, dirmSize - compressedStart);
+        if ((indirectDirmSize & 1) != 0)
+        {
+            head.put((byte) 0);
+        }
+        if (navm != null)
+        {
+            head.put(navm);
+        }
+        head.flip();
+
+        final SparseDocumentReader reader = new SparseDocumentReader(head);
+        for (Object file : dir.get_files_list())
+        {
+            final DjVmDir.File component = (DjVmDir.File) file;
+            reader.componentRanges.put(component.get_load_name(), new int[]{component.offset, component.size});
+        }
+        return reader;
+    }
+
+    private static ByteBuffer readNavm(FileChannel channel, long position) throws IOException
+    {
+        final ByteBuffer chunkHeader = readFully(channel, position, 8);
+        if (chunkHeader == null || !matches(chunkHeader, 0, "NAVM"))
+        {
+            return null;
+        }
+        final int size = chunkHeader.getInt(4);
+        if (size < 0 || size > MAX_NAVM_SIZE)
+        {
+            return null;
+        }
+        return readFully(channel, position, 8 + size + (size & 1));
+    }
+
+    /**
+     * The directory and outline, the whole main stream in indirect form.
+     */
+    ByteBuffer getIndirectHead()
+    {
+        return indirectHead.duplicate();
+    }
+
+    /**
+     * @return {offset, size} of the component the codec asked for, or null if it isn't one of this document's
+     */
+    int[] getComponentRange(String id)
+    {
+        return componentRanges.get(id);
+    }
+
+    /**
+     * Component streams are whole files of their own, so they need the magic the bundled file only has once.
+     */
+    static ByteBuffer getMagic()
+    {
+        final ByteBuffer magic = ByteBuffer.allocateDirect(MAGIC.length);
+        magic.put(MAGIC);
+        magic.flip();
+        return magic;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException
+    {
+        if (position + length > channel.size())
+        {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                return null;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, String tag)
+    {
+        for (int i = 0; i < tag.length(); i++)
+        {
+            if (buffer.get(offset + i) != tag.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,207 @@
+package org.djvudroid.codec;
+
+import android.os.StatFs;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Local copies of documents whose streams can't be memory mapped, typically <code>content://</code> ones, so they are
+ * only streamed from their provider once. A copy is written while the document is fed to the codec and only becomes
+ * visible when it is complete. Least recently opened copies are deleted once the directory gets over its size budget,
+ * except the copy just committed, which stays even if it alone is over budget.
+ */
+class SpoolCache
+{
+    private static final String DJVU_DROID_CODEC_LIBRARY = "DjvuDroidCodecLibrary";
+    // unless set, the budget is a share of the copies and the space left free next to them, but never below the minimum
+    private static final long MIN_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int FREE_SPACE_SHARE = 4;
+    private static final String PART_SUFFIX = ".part";
+
+    private final File dir;
+    private long maxBytes;
+
+    SpoolCache(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * @param maxBytes budget of the directory, or 0 to size it from the free space of its file system
+     */
+    synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the complete copy for <code>key</code>, marked as just opened, or null
+     */
+    File get(String key)
+    {
+        final File file = new File(dir, key);
+        if (!file.isFile())
+        {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * @return a spool to write a new copy to, or null if the directory isn't writable
+     */
+    Spool create(String key)
+    {
+        try
+        {
+            dir.mkdirs();
+            return new Spool(File.createTempFile(key, PART_SUFFIX, dir), new File(dir, key));
+        }
+        catch (IOException e)
+        {
+            Log.w(DJVU_DROID_CODEC_LIBRARY, "Can't spool " + key, e);
+            return null;
+        }
+    }
+
+    private synchronized void trim(File committed)
+    {
+        final File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        long usedBytes = 0;
+        for (File file : files)
+        {
+            usedBytes += file.length();
+        }
+        final long budget = getMaxBytes(usedBytes);
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File file1, File file2)
+            {
+                return file1.lastModified() < file2.lastModified() ? 1 : file1.lastModified() == file2.lastModified() ? 0 : -1;
+            }
+        });
+        long bytes = 0;
+        for (File file : files)
+        {
+            final long length = file.length();
+            bytes += length;
+            if (bytes > budget && !file.equals(committed) && !file.getName().endsWith(PART_SUFFIX))
+            {
+                Log.d(DJVU_DROID_CODEC_LIBRARY, "Evicting spooled " + file.getName());
+                if (file.delete())
+                {
+                    bytes -= length;
+                }
+            }
+        }
+    }
+
+    private long getMaxBytes(long usedBytes)
+    {
+        if (maxBytes > 0)
+        {
+            return maxBytes;
+        }
+        try
+        {
+            final StatFs statFs = new StatFs(dir.getPath());
+            final long freeBytes = (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+            return Math.max(MIN_MAX_BYTES, (usedBytes + freeBytes) / FREE_SPACE_SHARE);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.w(DJVU_DROID_CODEC_LIBRARY, "Can't stat " + dir, e);
+            return MIN_MAX_BYTES;
+        }
+    }
+
+    /**
+     * A copy being written. Write errors don't propagate, the copy is just dropped, the stream it follows is what
+     * matters.
+     */
+    class Spool
+    {
+        private final File partFile;
+        private final File file;
+        private FileOutputStream outputStream;
+
+        private Spool(File partFile, File file) throws IOException
+        {
+            this.partFile = partFile;
+            this.file = file;
+            this.outputStream = new FileOutputStream(partFile);
+        }
+
+        void write(byte[] bytes, int offset, int length)
+        {
+            if (outputStream == null)
+            {
+                return;
+            }
+            try
+            {
+                outputStream.write(bytes, offset, length);
+            }
+            catch (IOException e)
+            {
+                Log.w(DJVU_DROID_CODEC_LIBRARY, "Can't spool " + file.getName(), e);
+                abort();
+            }
+        }
+
+        void commit()
+        {
+            if (outputStream == null)
+            {
+                return;
+            }
+            if (close() && partFile.renameTo(file))
+            {
+                Log.d(DJVU_DROID_CODEC_LIBRARY, "Spooled " + file.getName() + ", " + file.length() + " bytes");
+                trim(file);
+            }
+            else
+            {
+                partFile.delete();
+            }
+        }
+
+        void abort()
+        {
+            close();
+            partFile.delete();
+        }
+
+        private boolean close()
+        {
+            if (outputStream == null)
+            {
+                return false;
+            }
+            try
+            {
+                outputStream.close();
+                return true;
+            }
+            catch (IOException e)
+            {
+                Log.w(DJVU_DROID_CODEC_LIBRARY, "Can't spool " + file.getName(), e);
+                return false;
+            }
+            finally
+            {
+                outputStream = null;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.djvudroid.presentation;
 
 import android.content.Context;
+import android.net.Uri;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -19,12 +20,14 @@ import java.util.List;
 public class BrowserAdapter extends BaseAdapter
 {
     private final Context context;
+    private final ThumbnailLoader thumbnailLoader;
     private File currentDirectory;
     private List<File> files = Collections.emptyList();
 
-    public BrowserAdapter(Context context)
+    public BrowserAdapter(Context context, ThumbnailLoader thumbnailLoader)
     {
         this.context = context;
+        this.thumbnailLoader = thumbnailLoader;
     }
 
     public int getCount()
@@ -44,23 +47,25 @@ public class BrowserAdapter extends BaseAdapter
 
     public View getView(int i, View view, ViewGroup viewGroup)
     {
-        final View browserItem = LayoutInflater.from(context).inflate(R.layout.browseritem, viewGroup, false);
+        final View browserItem = view != null ? view : LayoutInflater.from(context).inflate(R.layout.browseritem, viewGroup, false);
         final ImageView imageView = (ImageView) browserItem.findViewById(R.id.browserItemIcon);
         final File file = files.get(i);
         final TextView textView = (TextView) browserItem.findViewById(R.id.browserItemText);
         textView.setText(file.getName());
         if (file.equals(currentDirectory.getParentFile()))
         {
+            thumbnailLoader.cancel(imageView);
             imageView.setImageResource(R.drawable.arrowup);
             textView.setText(file.getAbsolutePath());
         }
         else if (file.isDirectory())
         {
+            thumbnailLoader.cancel(imageView);
             imageView.setImageResource(R.drawable.folderopen);
         }
         else
         {
-            imageView.setImageResource(R.drawable.book);
+            thumbnailLoader.load(imageView, Uri.fromFile(file));
         }
         return browserItem;
     }
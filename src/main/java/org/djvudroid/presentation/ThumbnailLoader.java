@@ -0,0 +1,289 @@
+package org.djvudroid.presentation;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.ImageView;
+import org.djvudroid.R;
+import org.djvudroid.codec.CancellationToken;
+import org.djvudroid.codec.CodecContext;
+import org.djvudroid.codec.CodecDocument;
+import org.djvudroid.codec.CodecPage;
+import org.djvudroid.utils.DocumentFingerprint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows the first page of documents in list rows. Thumbnails are rendered small on a couple of background threads and
+ * kept on disk by document id, rows show the book icon until theirs is ready. A row reused for another item cancels
+ * the request it had, so scrolling through a long directory only renders what stays on screen. Everything but
+ * rendering happens on the UI thread.
+ * <p/>
+ * Only local files get thumbnails. Other documents keep the book icon, they would have to be read, and spooled, in
+ * full for a row of a list.
+ */
+public class ThumbnailLoader
+{
+    private static final String DJVU_DROID = "DjvuDroid";
+    private static final int MAX_CONCURRENT_DECODES = 2;
+    private static final int THUMBNAIL_HEIGHT = 64;
+    private static final int MEMORY_CACHE_SIZE = 64;
+
+    private final ContentResolver contentResolver;
+    private final CodecContext codecContext;
+    private final File dir;
+    private final Handler handler = new Handler();
+    private final ThreadPoolExecutor executorService = new ThreadPoolExecutor(MAX_CONCURRENT_DECODES,
+            MAX_CONCURRENT_DECODES, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Map<ImageView, ThumbnailTask> imageViewToTask = new HashMap<ImageView, ThumbnailTask>();
+    private final Set<Uri> failedUris = new HashSet<Uri>();
+    private final LinkedHashMap<Uri, Bitmap> thumbnails = new LinkedHashMap<Uri, Bitmap>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Uri, Bitmap> eldest)
+        {
+            return size() > MEMORY_CACHE_SIZE;
+        }
+    };
+
+    public ThumbnailLoader(ContentResolver contentResolver, CodecContext codecContext, File dir)
+    {
+        this.contentResolver = contentResolver;
+        this.codecContext = codecContext;
+        this.dir = dir;
+    }
+
+    public void load(ImageView imageView, Uri uri)
+    {
+        final ThumbnailTask previousTask = imageViewToTask.get(imageView);
+        if (previousTask != null && previousTask.uri.equals(uri))
+        {
+            return;
+        }
+        cancel(imageView);
+        final Bitmap thumbnail = thumbnails.get(uri);
+        if (thumbnail != null)
+        {
+            imageView.setImageBitmap(thumbnail);
+            return;
+        }
+        imageView.setImageResource(R.drawable.book);
+        if (failedUris.contains(uri) || !"file".equals(uri.getScheme()))
+        {
+            return;
+        }
+        final ThumbnailTask task = new ThumbnailTask(imageView, uri);
+        imageViewToTask.put(imageView, task);
+        executorService.execute(task);
+    }
+
+    /**
+     * Drops the pending request of a row that now shows something without a thumbnail.
+     */
+    public void cancel(ImageView imageView)
+    {
+        final ThumbnailTask task = imageViewToTask.remove(imageView);
+        if (task != null)
+        {
+            task.cancel(false);
+            executorService.remove(task);
+        }
+    }
+
+    public void shutdown()
+    {
+        imageViewToTask.clear();
+        executorService.shutdownNow();
+    }
+
+    /**
+     * @return null if it couldn't be rendered, or if it was cancelled before that
+     */
+    private Bitmap loadThumbnail(Uri uri, CancellationToken cancellationToken)
+    {
+        final String documentId = DocumentFingerprint.fingerprintFor(contentResolver, uri);
+        final File file = new File(dir, documentId);
+        if (file.isFile())
+        {
+            final Bitmap thumbnail = BitmapFactory.decodeFile(file.getPath());
+            if (thumbnail != null)
+            {
+                return thumbnail;
+            }
+        }
+        final Bitmap thumbnail = renderThumbnail(uri, documentId, cancellationToken);
+        if (thumbnail != null)
+        {
+            save(file, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    private Bitmap renderThumbnail(Uri uri, String documentId, CancellationToken cancellationToken)
+    {
+        final CodecDocument document;
+        synchronized (codecContext)
+        {
+            document = codecContext.openDocument(uri, documentId);
+        }
+        try
+        {
+            final CodecPage page = document.getPage(0);
+            try
+            {
+                while (page.isDecoding())
+                {
+                    // a row scrolled away or a closed browser stops waiting for the page
+                    if (cancellationToken.isCancelled() || Thread.currentThread().isInterrupted())
+                    {
+                        return null;
+                    }
+                    page.waitForDecode();
+                }
+                final int width = Math.max(1, Math.round(THUMBNAIL_HEIGHT * page.getWidth() * 1.0f / page.getHeight()));
+                return page.renderBitmap(width, THUMBNAIL_HEIGHT);
+            }
+            finally
+            {
+                document.releasePage(page);
+            }
+        }
+        finally
+        {
+            document.recycle();
+        }
+    }
+
+    private void save(File file, Bitmap thumbnail)
+    {
+        dir.mkdirs();
+        final File partFile = new File(dir, file.getName() + ".part");
+        FileOutputStream outputStream = null;
+        try
+        {
+            outputStream = new FileOutputStream(partFile);
+            thumbnail.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            outputStream.close();
+            outputStream = null;
+            partFile.renameTo(file);
+        }
+        catch (IOException e)
+        {
+            Log.w(DJVU_DROID, "Can't save thumbnail " + file, e);
+        }
+        finally
+        {
+            if (outputStream != null)
+            {
+                try
+                {
+                    outputStream.close();
+                }
+                catch (IOException e)
+                {
+                    Log.w(DJVU_DROID, "Can't close thumbnail " + file, e);
+                }
+            }
+            partFile.delete();
+        }
+    }
+
+    private class ThumbnailTask extends FutureTask<Bitmap> implements CancellationToken
+    {
+        private final ImageView imageView;
+        private final Uri uri;
+
+        private ThumbnailTask(ImageView imageView, Uri uri)
+        {
+            this(imageView, uri, new ThumbnailRender(uri));
+        }
+
+        private ThumbnailTask(ImageView imageView, Uri uri, ThumbnailRender render)
+        {
+            super(render);
+            render.task = this;
+            this.imageView = imageView;
+            this.uri = uri;
+        }
+
+        @Override
+        protected void done()
+        {
+            if (isCancelled())
+            {
+                return;
+            }
+            handler.post(new Runnable()
+            {
+                public void run()
+                {
+                    deliver();
+                }
+            });
+        }
+
+        private void deliver()
+        {
+            if (imageViewToTask.get(imageView) != this)
+            {
+                return;
+            }
+            imageViewToTask.remove(imageView);
+            try
+            {
+                final Bitmap thumbnail = get();
+                if (thumbnail == null)
+                {
+                    failedUris.add(uri);
+                    return;
+                }
+                thumbnails.put(uri, thumbnail);
+                imageView.setImageBitmap(thumbnail);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                Log.w(DJVU_DROID, "Can't render thumbnail of " + uri, e.getCause());
+                failedUris.add(uri);
+            }
+        }
+    }
+
+    /**
+     * Cancelled with the task that runs it, which is only known once that task is created.
+     */
+    private class ThumbnailRender implements Callable<Bitmap>
+    {
+        private final Uri uri;
+        private ThumbnailTask task;
+
+        private ThumbnailRender(Uri uri)
+        {
+            this.uri = uri;
+        }
+
+        public Bitmap call()
+        {
+            return loadThumbnail(uri, task);
+        }
+    }
+}
@@ -14,8 +14,14 @@ import java.util.List;
 
 public class UriBrowserAdapter extends BaseAdapter
 {
+    private final ThumbnailLoader thumbnailLoader;
     private List<Uri> uris = Collections.emptyList();
 
+    public UriBrowserAdapter(ThumbnailLoader thumbnailLoader)
+    {
+        this.thumbnailLoader = thumbnailLoader;
+    }
+
     public int getCount()
     {
         return uris.size();
@@ -33,12 +39,12 @@ public class UriBrowserAdapter extends BaseAdapter
 
     public View getView(int i, View view, ViewGroup viewGroup)
     {
-        final View browserItem = LayoutInflater.from(viewGroup.getContext()).inflate(R.layout.browseritem, viewGroup, false);
+        final View browserItem = view != null ? view : LayoutInflater.from(viewGroup.getContext()).inflate(R.layout.browseritem, viewGroup, false);
         final ImageView imageView = (ImageView) browserItem.findViewById(R.id.browserItemIcon);
         final Uri uri = uris.get(i);
         final TextView textView = (TextView) browserItem.findViewById(R.id.browserItemText);
         textView.setText(uri.getLastPathSegment());
-        imageView.setImageResource(R.drawable.book);
+        thumbnailLoader.load(imageView, uri);
         return browserItem;
     }
 
@@ -0,0 +1,83 @@
+package org.djvudroid.utils;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Identifies a document by its content rather than by the uri it was reached through: its size and a hash of blocks
+ * sampled at its start, middle and end. The same file opened through two uris gets one identity. A file changed in
+ * place only gets a new one if its size or one of the sampled blocks changed. The modification time isn't part of it,
+ * as <code>content://</code> streams of a local file don't expose it and the file would get two identities again.
+ * <p/>
+ * It costs opening the document and three positioned reads of at most {@link #SAMPLE_SIZE} bytes, without reading
+ * the rest of the file. That still waits on storage, so it's taken on the thread documents are opened on.
+ * <p/>
+ * Streams that can't be seeked, anything that isn't a local file like most <code>content://</code> uris, fall back to
+ * an identity derived from the uri and aren't read at all. Those documents get one identity per uri, and keep it if
+ * the content behind the uri changes, so whatever is kept by document id is only as stable as the uri.
+ */
+public class DocumentFingerprint
+{
+    private static final String DJVU_DROID = "DjvuDroid";
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    public static String fingerprintFor(ContentResolver contentResolver, Uri uri)
+    {
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = contentResolver.openInputStream(uri);
+            if (inputStream instanceof FileInputStream)
+            {
+                return fingerprintFor(((FileInputStream) inputStream).getChannel());
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(DJVU_DROID, "Can't fingerprint " + uri, e);
+        }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    Log.w(DJVU_DROID, "Can't close " + uri, e);
+                }
+            }
+        }
+        return "uri-" + MD5StringUtil.md5StringFor(uri.toString());
+    }
+
+    private static String fingerprintFor(FileChannel channel) throws IOException
+    {
+        final long size = channel.size();
+        final long[] sampleStarts = {0, Math.max(0, size / 2 - SAMPLE_SIZE / 2), Math.max(0, size - SAMPLE_SIZE)};
+        final int sampleLength = (int) Math.min(size, SAMPLE_SIZE);
+        final ByteBuffer samples = ByteBuffer.allocate(sampleLength * sampleStarts.length);
+        for (int i = 0; i < sampleStarts.length; i++)
+        {
+            final int sampleOffset = i * sampleLength;
+            samples.limit(sampleOffset + sampleLength);
+            while (samples.hasRemaining())
+            {
+                if (channel.read(samples, sampleStarts[i] + samples.position() - sampleOffset) == -1)
+                {
+                    throw new IOException("File shrank while being read");
+                }
+            }
+        }
+        return Long.toString(size, 16) + "-" + MD5StringUtil.md5StringFor(samples.array());
+    }
+}
@@ -5,27 +5,35 @@ import java.security.NoSuchAlgorithmException;
 
 public class MD5StringUtil
 {
-    private static final MessageDigest digest;
-
-    static
+    // MessageDigest keeps state between update and digest, so each thread needs its own
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>()
     {
-        try
-        {
-            digest = MessageDigest.getInstance("MD5");
-        }
-        catch (NoSuchAlgorithmException e)
+        @Override
+        protected MessageDigest initialValue()
         {
-            throw new RuntimeException(e);
+            try
+            {
+                return MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new RuntimeException(e);
+            }
         }
-    }
+    };
 
     public static String md5StringFor(String s)
     {
-        final byte[] hash = digest.digest(s.getBytes());
+        return md5StringFor(s.getBytes());
+    }
+
+    public static String md5StringFor(byte[] bytes)
+    {
+        final byte[] hash = digest.get().digest(bytes);
         final StringBuilder builder = new StringBuilder();
         for (byte b : hash)
         {
-            builder.append(Integer.toString(b & 0xFF, 16));    
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
         }
         return builder.toString();
     }
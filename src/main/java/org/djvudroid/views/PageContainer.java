@@ -0,0 +1,274 @@
+package org.djvudroid.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.View;
+import org.djvudroid.Tile;
+import org.djvudroid.TileCache;
+
+import java.util.List;
+
+/**
+ * Lays pages out one below the other from their aspect ratios alone and draws the ones the canvas asks for: the page
+ * bitmap scaled to the page, the cached {@link Tile}s over it, or the page number while there is no bitmap. Pages
+ * have no views, so a finished render only invalidates the rect it covers. Page tops come from a
+ * {@link PageHeightTree} scaled by the current width and zoom.
+ */
+public class PageContainer extends View
+{
+    private static final int PAGE_NUMBER_TEXT_SIZE = 32;
+
+    private final PageHeightTree pageHeights = new PageHeightTree();
+    private int baseWidth;
+    private float zoom = 1.0f;
+    private PageSource pageSource;
+    private final TileCache tileCache;
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect clipRect = new Rect();
+    private final Rect pageRect = new Rect();
+    private final Rect tileRect = new Rect();
+    // built the first time each page number is drawn, not on every frame
+    private String[] pageLabels = new String[0];
+
+    /**
+     * What there is to draw for a page, asked for on every draw of it.
+     */
+    public interface PageSource
+    {
+        /**
+         * @return the page's bitmap, possibly still being rendered into, or null if it has none yet
+         */
+        Bitmap getPageBitmap(int pageIndex);
+
+        boolean isDecoding(int pageIndex);
+    }
+
+    public PageContainer(Context context, TileCache tileCache)
+    {
+        super(context);
+        this.tileCache = tileCache;
+        textPaint.setColor(Color.GRAY);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        textPaint.setTextSize(PAGE_NUMBER_TEXT_SIZE * context.getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    public void setPageSource(PageSource pageSource)
+    {
+        this.pageSource = pageSource;
+    }
+
+    /**
+     * Sizes every page with <code>aspectRatio</code> until told otherwise.
+     */
+    public void setPageCount(int pageCount, float aspectRatio)
+    {
+        pageHeights.setPageCount(pageCount, aspectRatio);
+        pageLabels = new String[pageCount];
+        requestLayout();
+        invalidate();
+    }
+
+    public int getPageCount()
+    {
+        return pageHeights.getPageCount();
+    }
+
+    public float getAspectRatio(int pageIndex)
+    {
+        return pageHeights.getAspectRatio(pageIndex);
+    }
+
+    /**
+     * Moves the pages below, so unlike a render finishing it takes a layout pass.
+     */
+    public void setAspectRatio(int pageIndex, float aspectRatio)
+    {
+        if (pageHeights.setAspectRatio(pageIndex, aspectRatio))
+        {
+            requestLayout();
+            invalidate();
+        }
+    }
+
+    /**
+     * Pages are <code>baseWidth</code> wide at zoom 1.
+     */
+    public void setLayout(int baseWidth, float zoom)
+    {
+        if (this.baseWidth != baseWidth || this.zoom != zoom)
+        {
+            this.baseWidth = baseWidth;
+            this.zoom = zoom;
+            requestLayout();
+            invalidate();
+        }
+    }
+
+    public int getPageWidth()
+    {
+        return Math.round(baseWidth * zoom);
+    }
+
+    /**
+     * Heights are differences of rounded tops, so pages always join up without gaps or overlaps.
+     */
+    public int getPageHeight(int pageIndex)
+    {
+        return getPageTop(pageIndex + 1) - getPageTop(pageIndex);
+    }
+
+    /**
+     * @param pageIndex the page count gives the height of the whole document
+     */
+    public int getPageTop(int pageIndex)
+    {
+        return pageHeights.getPageTop(pageIndex, getScale());
+    }
+
+    /**
+     * @return the page under <code>y</code>, the first or last one for points above or below the document
+     */
+    public int getPageAt(int y)
+    {
+        return pageHeights.getPageAt(y, getScale());
+    }
+
+    /**
+     * Redraws a page whose bitmap or decoding state changed.
+     */
+    public void invalidatePage(int pageIndex)
+    {
+        if (pageIndex < getPageCount())
+        {
+            getPageRect(pageIndex, pageRect);
+            invalidate(pageRect);
+        }
+    }
+
+    public void invalidateTile(Tile tile)
+    {
+        final Bitmap bitmap = tileCache.get(tile);
+        if (bitmap != null && tile.getPageIndex() < getPageCount())
+        {
+            getTileRect(tile, bitmap, tileRect);
+            tileRect.offset(0, getPageTop(tile.getPageIndex()));
+            invalidate(tileRect);
+        }
+    }
+
+    private double getScale()
+    {
+        return baseWidth * (double) zoom;
+    }
+
+    private void getPageRect(int pageIndex, Rect rect)
+    {
+        final int top = getPageTop(pageIndex);
+        rect.set(0, top, getPageWidth(), top + getPageHeight(pageIndex));
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec)
+    {
+        setMeasuredDimension(getPageWidth(), getPageTop(getPageCount()));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        if (pageSource == null || getPageCount() == 0 || !canvas.getClipBounds(clipRect))
+        {
+            return;
+        }
+        final int last = getPageAt(clipRect.bottom - 1);
+        for (int pageIndex = getPageAt(clipRect.top); pageIndex <= last; pageIndex++)
+        {
+            getPageRect(pageIndex, pageRect);
+            final Bitmap bitmap = pageSource.getPageBitmap(pageIndex);
+            if (bitmap != null)
+            {
+                canvas.drawBitmap(bitmap, null, pageRect, bitmapPaint);
+            }
+            else
+            {
+                drawPlaceholder(canvas, pageIndex);
+            }
+            drawTiles(canvas, pageIndex);
+        }
+    }
+
+    private void drawPlaceholder(Canvas canvas, int pageIndex)
+    {
+        final boolean decoding = pageSource.isDecoding(pageIndex);
+        final float y = pageRect.exactCenterY() - (decoding ? textPaint.getTextSize() / 2 : 0);
+        if (pageLabels[pageIndex] == null)
+        {
+            pageLabels[pageIndex] = "Page " + (pageIndex + 1);
+        }
+        canvas.drawText(pageLabels[pageIndex], pageRect.exactCenterX(), y, textPaint);
+        if (decoding)
+        {
+            canvas.drawText("Loading...", pageRect.exactCenterX(), y + textPaint.getTextSize(), textPaint);
+        }
+    }
+
+    /**
+     * Tiles of every cached level are drawn scaled to the zoom the pages are laid out at, farthest level first, so
+     * the closest level ends up on top. Levels at the same distance are drawn lowest first.
+     */
+    private void drawTiles(Canvas canvas, int pageIndex)
+    {
+        final List<Tile> pageTiles = tileCache.getPageTiles(pageIndex);
+        if (pageTiles.isEmpty())
+        {
+            return;
+        }
+        canvas.save();
+        canvas.clipRect(pageRect);
+        canvas.translate(0, pageRect.top);
+        // tiles are ordered by zoom, so the distance to the current level only shrinks walking in from either end
+        int low = 0;
+        int high = pageTiles.size() - 1;
+        while (low <= high)
+        {
+            final Tile lowTile = pageTiles.get(low);
+            final Tile highTile = pageTiles.get(high);
+            if (getLevelDistance(lowTile) >= getLevelDistance(highTile))
+            {
+                drawTile(canvas, lowTile);
+                low++;
+            }
+            else
+            {
+                drawTile(canvas, highTile);
+                high--;
+            }
+        }
+        canvas.restore();
+    }
+
+    private void drawTile(Canvas canvas, Tile tile)
+    {
+        final Bitmap bitmap = tileCache.get(tile);
+        getTileRect(tile, bitmap, tileRect);
+        canvas.drawBitmap(bitmap, null, tileRect, bitmapPaint);
+    }
+
+    private float getLevelDistance(Tile tile)
+    {
+        final float ratio = tile.getZoom() / Tile.getLevel(zoom);
+        return ratio < 1 ? 1 / ratio : ratio;
+    }
+
+    private void getTileRect(Tile tile, Bitmap bitmap, Rect rect)
+    {
+        final float scale = zoom / tile.getZoom();
+        rect.set(Math.round(tile.getLeft() * scale), Math.round(tile.getTop() * scale),
+                Math.round((tile.getLeft() + bitmap.getWidth()) * scale), Math.round((tile.getTop() + bitmap.getHeight()) * scale));
+    }
+}
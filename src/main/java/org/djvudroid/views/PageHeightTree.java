@@ -0,0 +1,112 @@
+package org.djvudroid.views;
+
+import java.util.Arrays;
+
+/**
+ * Page tops from a Fenwick tree of the pages' heights at unit width, scaled by the width pages are laid out at, so a
+ * page changing its aspect ratio costs O(log n), a width change costs nothing and finding the page under a point is
+ * a O(log n) descent of the tree.
+ */
+class PageHeightTree
+{
+    private float[] aspectRatios = new float[0];
+    // 1-based Fenwick tree over 1 / aspectRatio, the page heights at unit width
+    private double[] heightTree = new double[1];
+
+    /**
+     * Sizes every page with <code>aspectRatio</code> until told otherwise.
+     */
+    void setPageCount(int pageCount, float aspectRatio)
+    {
+        aspectRatios = new float[pageCount];
+        Arrays.fill(aspectRatios, aspectRatio);
+        heightTree = new double[pageCount + 1];
+        for (int i = 1; i <= pageCount; i++)
+        {
+            heightTree[i] += 1.0 / aspectRatio;
+            final int parent = i + (i & -i);
+            if (parent <= pageCount)
+            {
+                heightTree[parent] += heightTree[i];
+            }
+        }
+    }
+
+    int getPageCount()
+    {
+        return aspectRatios.length;
+    }
+
+    float getAspectRatio(int pageIndex)
+    {
+        return aspectRatios[pageIndex];
+    }
+
+    /**
+     * @return whether the page had another aspect ratio
+     */
+    boolean setAspectRatio(int pageIndex, float aspectRatio)
+    {
+        if (aspectRatios[pageIndex] == aspectRatio)
+        {
+            return false;
+        }
+        final double delta = 1.0 / aspectRatio - 1.0 / aspectRatios[pageIndex];
+        aspectRatios[pageIndex] = aspectRatio;
+        for (int i = pageIndex + 1; i < heightTree.length; i += i & -i)
+        {
+            heightTree[i] += delta;
+        }
+        return true;
+    }
+
+    /**
+     * @param pageIndex the page count gives the height of the whole document
+     * @param width     the width pages are laid out at
+     */
+    int getPageTop(int pageIndex, double width)
+    {
+        double height = 0;
+        for (int i = pageIndex; i > 0; i -= i & -i)
+        {
+            height += heightTree[i];
+        }
+        return (int) Math.round(height * width);
+    }
+
+    /**
+     * @return the page under <code>y</code>, the first or last one for points above or below the document
+     */
+    int getPageAt(int y, double width)
+    {
+        final int pageCount = aspectRatios.length;
+        if (pageCount == 0)
+        {
+            return 0;
+        }
+        // the most pages whose heights add up to no more than y, the page after them is the one under y
+        final double target = y / width;
+        int pageIndex = 0;
+        double height = 0;
+        for (int step = Integer.highestOneBit(pageCount); step > 0; step >>= 1)
+        {
+            final int next = pageIndex + step;
+            if (next <= pageCount && height + heightTree[next] <= target)
+            {
+                pageIndex = next;
+                height += heightTree[next];
+            }
+        }
+        // the descent works on unrounded heights, settle it against the rounded tops pages are laid out at
+        pageIndex = Math.min(pageIndex, pageCount - 1);
+        while (pageIndex > 0 && getPageTop(pageIndex, width) > y)
+        {
+            pageIndex--;
+        }
+        while (pageIndex + 1 < pageCount && getPageTop(pageIndex + 1, width) <= y)
+        {
+            pageIndex++;
+        }
+        return pageIndex;
+    }
+}
@@ -0,0 +1,104 @@
+package org.djvudroid;
+
+import android.graphics.Bitmap;
+import org.djvudroid.codec.CancellationToken;
+import org.djvudroid.codec.CodecContext;
+import org.djvudroid.codec.CodecDocument;
+import org.djvudroid.codec.CodecPage;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Decodes that fail, bitmaps need a device. A single worker and a page that is still decoding keep the first decode
+ * waiting while the test queues what it needs behind it.
+ */
+public class DecodeServiceTest
+{
+    private static final int TIMEOUT_SECONDS = 5;
+
+    private final CountDownLatch pageWaited = new CountDownLatch(1);
+    private final CountDownLatch pageDecoded = new CountDownLatch(1);
+    private CodecPage page;
+    private DecodeService decodeService;
+
+    @Before
+    public void setUp()
+    {
+        page = mock(CodecPage.class);
+        when(page.getWidth()).thenReturn(200);
+        when(page.getHeight()).thenReturn(100);
+        when(page.isDecoding()).thenAnswer(new Answer<Boolean>()
+        {
+            public Boolean answer(InvocationOnMock invocation)
+            {
+                return pageDecoded.getCount() > 0;
+            }
+        });
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                pageWaited.countDown();
+                pageDecoded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(page).waitForDecode();
+        final CodecDocument document = mock(CodecDocument.class);
+        when(document.getPage(0)).thenReturn(page);
+        when(document.getPageCount()).thenReturn(1);
+        decodeService = new DecodeService(mock(CodecContext.class), 1)
+        {
+            @Override
+            int getTargetWidth()
+            {
+                return 100;
+            }
+        };
+        decodeService.setDocument(document, "document");
+    }
+
+    @Test
+    public void claimedHalfHearsOfAFailedRender() throws InterruptedException
+    {
+        when(page.renderRegion(anyInt(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(), any(ByteBuffer.class),
+                any(CancellationToken.class))).thenReturn(false);
+        decodeService.twoUp = true;
+        final Callback left = new Callback();
+        final Callback right = new Callback();
+        decodeService.decodePage(0, left, 1.0f);
+        assertTrue(pageWaited.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        decodeService.decodePage(1, right, 1.0f);
+        pageDecoded.countDown();
+
+        assertTrue(left.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(right.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // rendered once for both halves
+        verify(page).renderRegion(eq(200), eq(100), eq(0), eq(0), eq(200), eq(100), any(ByteBuffer.class),
+                any(CancellationToken.class));
+
+        // nothing of the failed halves stays registered, they are decoded again when asked for
+        final Callback again = new Callback();
+        decodeService.decodePage(1, again, 1.0f);
+        assertTrue(again.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static class Callback implements DecodeService.DecodeCallback
+    {
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        public void decodeComplete(Bitmap bitmap)
+        {
+            assertNull(bitmap);
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.djvudroid;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * States and the range of pages that have one. Bitmaps need a device, the table only keeps references to them.
+ */
+public class PageTableTest
+{
+    private PageTable pageTable;
+
+    @Before
+    public void setUp()
+    {
+        pageTable = new PageTable();
+        pageTable.setPageCount(10);
+    }
+
+    @Test
+    public void emptyTableHasAnEmptyRange()
+    {
+        assertTrue(pageTable.getFirst() > pageTable.getLast());
+    }
+
+    @Test
+    public void flagsAreSetAndClearedOneByOne()
+    {
+        pageTable.set(3, PageTable.DECODING | PageTable.PREFETCHING);
+        pageTable.clear(3, PageTable.PREFETCHING);
+        assertTrue(pageTable.is(3, PageTable.DECODING));
+        assertFalse(pageTable.is(3, PageTable.PREFETCHING));
+        assertFalse(pageTable.is(-1, PageTable.DECODING));
+        assertFalse(pageTable.is(10, PageTable.DECODING));
+        pageTable.clear(10, PageTable.DECODING);
+    }
+
+    @Test
+    public void rangeShrinksToThePagesWithState()
+    {
+        pageTable.set(2, PageTable.DECODING);
+        pageTable.set(7, PageTable.DECODING);
+        pageTable.set(5, PageTable.PREFETCHING);
+        assertEquals(2, pageTable.getFirst());
+        assertEquals(7, pageTable.getLast());
+        pageTable.clear(2, PageTable.DECODING);
+        pageTable.clear(7, PageTable.DECODING);
+        assertEquals(5, pageTable.getFirst());
+        assertEquals(5, pageTable.getLast());
+        pageTable.clear(5, PageTable.PREFETCHING);
+        assertTrue(pageTable.getFirst() > pageTable.getLast());
+        pageTable.set(1, PageTable.DECODING);
+        assertEquals(1, pageTable.getFirst());
+        assertEquals(1, pageTable.getLast());
+    }
+
+    @Test
+    public void bitmapKindsReplaceEachOther()
+    {
+        pageTable.set(4, PageTable.DECODING);
+        pageTable.putBitmap(4, null, PageTable.PREFETCHED);
+        assertTrue(pageTable.is(4, PageTable.PREFETCHED));
+        pageTable.putBitmap(4, null, PageTable.SHOWN);
+        assertTrue(pageTable.is(4, PageTable.SHOWN));
+        assertFalse(pageTable.is(4, PageTable.PREFETCHED));
+        assertTrue(pageTable.is(4, PageTable.DECODING));
+    }
+
+    @Test
+    public void takingABitmapOfAnotherKindLeavesIt()
+    {
+        pageTable.putBitmap(4, null, PageTable.STALE);
+        assertNull(pageTable.takeBitmap(4, PageTable.SHOWN));
+        assertTrue(pageTable.is(4, PageTable.STALE));
+        pageTable.takeBitmap(4, PageTable.STALE);
+        assertFalse(pageTable.is(4, PageTable.STALE));
+        assertTrue(pageTable.getFirst() > pageTable.getLast());
+    }
+
+    @Test
+    public void partialBitmapIsDrawnUntilTheRenderEnds()
+    {
+        pageTable.setPartialBitmap(6, null);
+        assertTrue(pageTable.is(6, PageTable.PARTIAL));
+        pageTable.clearPartialBitmap(6);
+        assertFalse(pageTable.is(6, PageTable.PARTIAL));
+        pageTable.clearPartialBitmap(10);
+    }
+
+    @Test
+    public void onlyThePagesLatestDecodeIsCurrent()
+    {
+        final Object stopped = new Object();
+        final Object latest = new Object();
+        pageTable.setDecode(3, stopped);
+        pageTable.setDecode(3, latest);
+        assertFalse(pageTable.isDecode(3, stopped));
+        assertTrue(pageTable.isDecode(3, latest));
+        pageTable.setDecode(3, null);
+        assertFalse(pageTable.isDecode(3, latest));
+        assertFalse(pageTable.isDecode(10, latest));
+    }
+
+    @Test
+    public void shrinkingKeepsTheStateOfTheRemainingPages()
+    {
+        pageTable.set(2, PageTable.DECODING);
+        pageTable.set(8, PageTable.PREFETCHING);
+        pageTable.setPageCount(5);
+        assertEquals(5, pageTable.getPageCount());
+        assertTrue(pageTable.is(2, PageTable.DECODING));
+        assertEquals(2, pageTable.getFirst());
+        assertEquals(2, pageTable.getLast());
+        pageTable.setPageCount(12);
+        assertTrue(pageTable.is(2, PageTable.DECODING));
+        assertFalse(pageTable.is(8, PageTable.PREFETCHING));
+    }
+}
@@ -0,0 +1,43 @@
+package org.djvudroid;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TileTest
+{
+    @Test
+    public void levelIsTheNextPowerOfTwoZoom()
+    {
+        assertEquals(1.0f, Tile.getLevel(0.5f), 0);
+        assertEquals(1.0f, Tile.getLevel(1.0f), 0);
+        assertEquals(2.0f, Tile.getLevel(1.01f), 0);
+        assertEquals(4.0f, Tile.getLevel(3.0f), 0);
+        assertEquals(4.0f, Tile.getLevel(4.0f), 0);
+        assertEquals(8.0f, Tile.getLevel(4.5f), 0);
+    }
+
+    @Test
+    public void tilesAreLaidOutOnTheGrid()
+    {
+        final Tile tile = new Tile(0, 2.0f, 3, 5);
+        assertEquals(3 * Tile.SIZE, tile.getLeft());
+        assertEquals(5 * Tile.SIZE, tile.getTop());
+    }
+
+    @Test
+    public void probeFindsTheTileItWasSetTo()
+    {
+        final Set<Tile> tiles = new HashSet<Tile>();
+        tiles.add(new Tile(1, 2.0f, 3, 4));
+        final Tile probe = new Tile(0, 1.0f, 0, 0);
+        assertFalse(tiles.contains(probe));
+        assertTrue(tiles.contains(probe.set(1, 2.0f, 3, 4)));
+        assertFalse(tiles.contains(probe.set(1, 4.0f, 3, 4)));
+        assertFalse(tiles.contains(probe.set(2, 2.0f, 3, 4)));
+        assertFalse(tiles.contains(probe.set(1, 2.0f, 4, 3)));
+    }
+}
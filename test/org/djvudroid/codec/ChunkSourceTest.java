@@ -0,0 +1,105 @@
+package org.djvudroid.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The sources stream feeds hand to the codec, slice by slice.
+ */
+public class ChunkSourceTest
+{
+    private static final int MAPPED_WINDOW_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 32768;
+
+    @Test
+    public void fileIsFedInMappedWindows() throws IOException
+    {
+        final byte[] data = randomBytes(MAPPED_WINDOW_SIZE * 2 + 12345);
+        final FileChannel channel = Fixtures.open(Fixtures.write(data, data.length));
+        try
+        {
+            final DjvuContext.FileSource source = new DjvuContext.FileSource(channel);
+            final ByteArrayOutputStream fed = new ByteArrayOutputStream();
+            int windows = 0;
+            for (ByteBuffer window; (window = source.next()) != null; windows++)
+            {
+                assertTrue(window.isDirect());
+                assertTrue(window.remaining() <= MAPPED_WINDOW_SIZE);
+                fed.write(toBytes(window));
+            }
+            assertEquals(3, windows);
+            assertArrayEquals(data, fed.toByteArray());
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void fileIsFedFromTheChannelPosition() throws IOException
+    {
+        final File file = Fixtures.getFile(Fixtures.BUNDLED);
+        final FileChannel channel = Fixtures.open(file);
+        try
+        {
+            channel.position(112);
+            final ByteBuffer window = new DjvuContext.FileSource(channel).next();
+            assertEquals(file.length() - 112, window.remaining());
+            assertEquals('F', window.get(0));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void streamIsFedInBufferSizedChunks() throws IOException
+    {
+        final byte[] data = randomBytes(BUFFER_SIZE * 3 + 100);
+        final DjvuContext.InputStreamSource source = new DjvuContext.InputStreamSource(new ByteArrayInputStream(data), null);
+        final ByteArrayOutputStream fed = new ByteArrayOutputStream();
+        for (ByteBuffer chunk; (chunk = source.next()) != null;)
+        {
+            assertTrue(chunk.isDirect());
+            assertTrue(chunk.remaining() <= BUFFER_SIZE);
+            fed.write(toBytes(chunk));
+        }
+        assertArrayEquals(data, fed.toByteArray());
+    }
+
+    @Test
+    public void buffersAreFedInOrder() throws IOException
+    {
+        final ByteBuffer head = ByteBuffer.allocate(4);
+        final ByteBuffer component = ByteBuffer.allocate(8);
+        final DjvuContext.BuffersSource source = new DjvuContext.BuffersSource(head, component);
+        assertSame(head, source.next());
+        assertSame(component, source.next());
+        assertNull(source.next());
+    }
+
+    private static byte[] randomBytes(int length)
+    {
+        final byte[] bytes = new byte[length];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer)
+    {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
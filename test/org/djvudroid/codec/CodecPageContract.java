@@ -0,0 +1,54 @@
+package org.djvudroid.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * What every backend's pages do with windows that don't lie within the page. Those are turned down before anything
+ * is decoded, so the native backend is held to it without its library.
+ */
+public abstract class CodecPageContract
+{
+    static final int PAGE_WIDTH = 261;
+    static final int PAGE_HEIGHT = 12;
+
+    protected abstract CodecPage getPage();
+
+    @Test
+    public void windowsReachingOutOfThePageAreTurnedDown()
+    {
+        assertRejected(-1, 0, 10, 10);
+        assertRejected(0, -1, 10, 10);
+        assertRejected(PAGE_WIDTH - 9, 0, 10, 10);
+        assertRejected(0, PAGE_HEIGHT - 9, 10, 10);
+        assertRejected(PAGE_WIDTH, 0, 1, 1);
+    }
+
+    @Test
+    public void emptyWindowsAreTurnedDown()
+    {
+        assertRejected(0, 0, 0, 10);
+        assertRejected(0, 0, 10, 0);
+        assertRejected(0, 0, -10, 10);
+    }
+
+    @Test
+    public void windowLargerThanTheBufferIsTurnedDown()
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(10 * 10 * 2 - 1);
+        assertFalse(getPage().renderRegion(PAGE_WIDTH, PAGE_HEIGHT, 0, 0, 10, 10, buffer));
+        assertFalse(getPage().renderRegion(PAGE_WIDTH, PAGE_HEIGHT, 0, 0, 10, 10, buffer, CancellationToken.NOT_CANCELLABLE));
+    }
+
+    private void assertRejected(int left, int top, int width, int height)
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(PAGE_WIDTH * PAGE_HEIGHT * 2);
+        final String window = left + "," + top + " " + width + "x" + height;
+        assertFalse(window, getPage().renderRegion(PAGE_WIDTH, PAGE_HEIGHT, left, top, width, height, buffer));
+        assertFalse(window, getPage().renderRegion(PAGE_WIDTH, PAGE_HEIGHT, left, top, width, height, buffer,
+                CancellationToken.NOT_CANCELLABLE));
+    }
+}
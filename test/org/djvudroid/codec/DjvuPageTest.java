@@ -0,0 +1,16 @@
+package org.djvudroid.codec;
+
+/**
+ * Without <code>libdjvudroid.so</code> only the windows a page turns down before calling into the library can be
+ * tried, the page handle is never looked at for those.
+ */
+public class DjvuPageTest extends CodecPageContract
+{
+    private final DjvuPage page = new DjvuPage(0);
+
+    @Override
+    protected CodecPage getPage()
+    {
+        return page;
+    }
+}
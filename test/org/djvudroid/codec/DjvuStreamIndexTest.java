@@ -0,0 +1,129 @@
+package org.djvudroid.codec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DjvuStreamIndexTest
+{
+    // the version 1 directory of the bundled fixture ends at 81, its pages at 6604 and 11378
+    private static final int DIRECTORY_END = 81;
+    private static final int FIRST_PAGE_END = 6604;
+    private static final long BLOCKED_MILLIS = 100;
+    private static final long RETURN_MILLIS = 5000;
+
+    private DjvuStreamIndex streamIndex;
+    private int fedBytes;
+
+    @Before
+    public void setUp()
+    {
+        streamIndex = new DjvuStreamIndex();
+        fedBytes = 0;
+    }
+
+    @Test
+    public void singlePageIsReadyOnceItsFormIsIn() throws Exception
+    {
+        final byte[] document = Fixtures.read(Fixtures.SINGLE);
+        feed(document, document.length - 1);
+        assertEquals(Integer.valueOf(1), streamIndex.awaitPageCount());
+        final Thread waiter = awaitPage(0);
+        assertBlocked(waiter);
+        feed(document, document.length);
+        assertReturned(waiter);
+    }
+
+    @Test
+    public void pageCountComesWithTheDirectory() throws Exception
+    {
+        feed(Fixtures.read(Fixtures.BUNDLED), DIRECTORY_END);
+        assertEquals(Integer.valueOf(2), streamIndex.awaitPageCount());
+    }
+
+    @Test
+    public void directorySplitAcrossFeedsIsCollected() throws Exception
+    {
+        final byte[] document = Fixtures.read(Fixtures.BUNDLED);
+        while (fedBytes < DIRECTORY_END)
+        {
+            feed(document, Math.min(fedBytes + 5, DIRECTORY_END));
+        }
+        assertEquals(Integer.valueOf(2), streamIndex.awaitPageCount());
+    }
+
+    @Test
+    public void bundledPageIsReadyOnceItsComponentIsIn() throws Exception
+    {
+        final byte[] document = Fixtures.read(Fixtures.BUNDLED);
+        feed(document, FIRST_PAGE_END - 1);
+        final Thread firstPage = awaitPage(0);
+        final Thread secondPage = awaitPage(1);
+        assertBlocked(firstPage);
+        feed(document, FIRST_PAGE_END);
+        assertReturned(firstPage);
+        assertBlocked(secondPage);
+        feed(document, document.length);
+        assertReturned(secondPage);
+    }
+
+    @Test
+    public void pagesWaitForTheWholeStreamWithoutDirectory() throws Exception
+    {
+        feed(Fixtures.read(Fixtures.BUNDLED), 16);
+        final Thread waiter = awaitPage(5);
+        assertBlocked(waiter);
+        streamIndex.finished();
+        assertNull(streamIndex.awaitPageCount());
+        assertReturned(waiter);
+    }
+
+    /**
+     * Feeds the document from where the last feed stopped up to <code>end</code>, in a buffer of its own like the
+     * stream feed does.
+     */
+    private void feed(byte[] document, int end)
+    {
+        final ByteBuffer chunk = ByteBuffer.allocateDirect(end - fedBytes);
+        chunk.put(document, fedBytes, end - fedBytes);
+        streamIndex.fed(chunk, chunk.position());
+        fedBytes = end;
+    }
+
+    private Thread awaitPage(final int pageNumber)
+    {
+        final Thread waiter = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    streamIndex.awaitPage(pageNumber);
+                }
+                catch (InterruptedException e)
+                {
+                    // the test is over
+                }
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+        return waiter;
+    }
+
+    private static void assertBlocked(Thread waiter) throws InterruptedException
+    {
+        waiter.join(BLOCKED_MILLIS);
+        assertTrue(waiter.isAlive());
+    }
+
+    private static void assertReturned(Thread waiter) throws InterruptedException
+    {
+        waiter.join(RETURN_MILLIS);
+        assertFalse(waiter.isAlive());
+    }
+}
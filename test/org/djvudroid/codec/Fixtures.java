@@ -0,0 +1,92 @@
+package org.djvudroid.codec;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The documents tests read, kept next to them:
+ * <ul>
+ * <li><code>single.djvu</code> is <code>toolbar.djvu</code> from the javadjvu sources, one colour page of 522x24 at
+ * 100 dpi.</li>
+ * <li><code>bundled.djvu</code> bundles that page as <code>p0001.djvu</code> at 112 (6492 bytes), an empty shared
+ * <code>shared.djvi</code> at 6604 (12 bytes) and, as <code>p0002.djvu</code> at 6616 (4762 bytes), the page's mask
+ * alone with its <code>INFO</code> set to 300 dpi and rotated 90 degrees. A one entry <code>NAVM</code> outline
+ * follows its version 1 <code>DIRM</code>.</li>
+ * <li><code>bundled-v0.djvu</code> is the same with a version 0 <code>DIRM</code>, which keeps the sizes next to the
+ * offsets, so the components are 2 bytes earlier.</li>
+ * </ul>
+ */
+class Fixtures
+{
+    static final String SINGLE = "single.djvu";
+    static final String BUNDLED = "bundled.djvu";
+    static final String BUNDLED_V0 = "bundled-v0.djvu";
+
+    static File getFile(String name)
+    {
+        try
+        {
+            return new File(Fixtures.class.getResource(name).toURI());
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+
+    static FileChannel open(String name) throws IOException
+    {
+        return open(getFile(name));
+    }
+
+    static FileChannel open(File file) throws IOException
+    {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    static byte[] read(String name) throws IOException
+    {
+        final FileChannel channel = open(name);
+        try
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) < 0)
+                {
+                    throw new EOFException(name);
+                }
+            }
+            return buffer.array();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return a temporary file with the first <code>length</code> bytes of <code>data</code>
+     */
+    static File write(byte[] data, int length) throws IOException
+    {
+        final File file = File.createTempFile("djvudroid", ".djvu");
+        file.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(data, 0, length);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,56 @@
+package org.djvudroid.codec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class JavaDjvuPageTest extends CodecPageContract
+{
+    private CodecDocument document;
+    private CodecPage page;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        final InputStream inputStream = new FileInputStream(Fixtures.getFile(Fixtures.SINGLE));
+        try
+        {
+            document = new JavaDjvuContext().openDocument(inputStream);
+        }
+        finally
+        {
+            inputStream.close();
+        }
+        page = document.getPage(0);
+    }
+
+    @After
+    public void tearDown()
+    {
+        document.releasePage(page);
+        document.recycle();
+    }
+
+    @Override
+    protected CodecPage getPage()
+    {
+        return page;
+    }
+
+    @Test
+    public void windowsWithinThePageAreRendered()
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(PAGE_WIDTH * PAGE_HEIGHT * 2);
+        assertTrue(page.renderRegion(PAGE_WIDTH, PAGE_HEIGHT, 0, 0, PAGE_WIDTH, PAGE_HEIGHT, buffer));
+        assertTrue(page.renderRegion(PAGE_WIDTH, PAGE_HEIGHT, PAGE_WIDTH - 10, PAGE_HEIGHT - 10, 10, 10, buffer));
+        assertTrue(page.renderRegion(PAGE_WIDTH, PAGE_HEIGHT, 0, 0, PAGE_WIDTH, PAGE_HEIGHT, buffer,
+                CancellationToken.NOT_CANCELLABLE));
+    }
+}
@@ -0,0 +1,169 @@
+package org.djvudroid.codec;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class PageCacheTest
+{
+    private static final long UNDECODED_PAGE_WEIGHT = 1024 * 1024;
+    // released pages of 100x100 weigh 10000
+    private static final long DECODED_PAGE_WEIGHT = 100 * 100;
+
+    @Test
+    public void openPagesAreShared()
+    {
+        final TestCache cache = new TestCache(UNDECODED_PAGE_WEIGHT);
+        final CodecPage page = cache.acquire(3);
+        assertSame(page, cache.acquire(3));
+        assertEquals(1, cache.createCount);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedReleasedPages()
+    {
+        // one page being opened and two decoded ones
+        final TestCache cache = new TestCache(UNDECODED_PAGE_WEIGHT + 2 * DECODED_PAGE_WEIGHT);
+        for (int pageNumber = 0; pageNumber < 3; pageNumber++)
+        {
+            cache.release(cache.acquire(pageNumber));
+        }
+        cache.release(cache.acquire(0));
+        cache.acquire(3);
+        verify(cache.pages.get(1)).recycle();
+        verify(cache.pages.get(0), never()).recycle();
+        verify(cache.pages.get(2), never()).recycle();
+    }
+
+    @Test
+    public void pinnedPagesAreNeverEvicted()
+    {
+        final TestCache cache = new TestCache(1);
+        final CodecPage page = cache.acquire(0);
+        cache.acquire(1);
+        verify(page, never()).recycle();
+        cache.release(page);
+        verify(page).recycle();
+        assertNotSame(page, cache.acquire(0));
+    }
+
+    @Test
+    public void recyclingFreesReleasedPagesRightAway()
+    {
+        final TestCache cache = new TestCache(UNDECODED_PAGE_WEIGHT * 4);
+        cache.release(cache.acquire(0));
+        cache.recycle();
+        verify(cache.pages.get(0)).recycle();
+        assertEquals(1, cache.onRecycledCount);
+        cache.recycle();
+        assertEquals(1, cache.onRecycledCount);
+    }
+
+    @Test
+    public void lastPinnedPageFinishesTheRecycling()
+    {
+        final TestCache cache = new TestCache(UNDECODED_PAGE_WEIGHT * 4);
+        final CodecPage page = cache.acquire(0);
+        cache.recycle();
+        verify(page, never()).recycle();
+        assertEquals(0, cache.onRecycledCount);
+        cache.release(page);
+        verify(page).recycle();
+        assertEquals(1, cache.onRecycledCount);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recycledCacheOpensNothing()
+    {
+        final TestCache cache = new TestCache(UNDECODED_PAGE_WEIGHT);
+        cache.recycle();
+        cache.acquire(0);
+    }
+
+    @Test
+    public void pageOpenedWhileRecyclingFinishesTheRecycling() throws Exception
+    {
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch dataArrived = new CountDownLatch(1);
+        final TestCache cache = new TestCache(UNDECODED_PAGE_WEIGHT)
+        {
+            @Override
+            protected CodecPage createPage(int pageNumber)
+            {
+                opening.countDown();
+                try
+                {
+                    dataArrived.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return super.createPage(pageNumber);
+            }
+        };
+        final Throwable[] thrown = new Throwable[1];
+        final Thread opener = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    cache.acquire(0);
+                }
+                catch (Throwable e)
+                {
+                    thrown[0] = e;
+                }
+            }
+        };
+        opener.start();
+        assertTrue(opening.await(5, TimeUnit.SECONDS));
+        cache.recycle();
+        assertEquals(0, cache.onRecycledCount);
+        dataArrived.countDown();
+        opener.join(5000);
+        assertTrue(thrown[0] instanceof IllegalStateException);
+        verify(cache.pages.get(0)).recycle();
+        assertEquals(1, cache.onRecycledCount);
+    }
+
+    private static class TestCache extends PageCache<CodecPage>
+    {
+        private final Map<Integer, CodecPage> pages = new HashMap<Integer, CodecPage>();
+        private int createCount;
+        private volatile int onRecycledCount;
+
+        private TestCache(long maxWeight)
+        {
+            super(maxWeight);
+        }
+
+        @Override
+        protected CodecPage createPage(int pageNumber)
+        {
+            final CodecPage page = mock(CodecPage.class);
+            when(page.getWidth()).thenReturn(100);
+            when(page.getHeight()).thenReturn(100);
+            synchronized (pages)
+            {
+                pages.put(pageNumber, page);
+                createCount++;
+            }
+            return page;
+        }
+
+        @Override
+        protected void onRecycled()
+        {
+            onRecycledCount++;
+        }
+    }
+}
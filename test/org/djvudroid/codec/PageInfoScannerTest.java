@@ -0,0 +1,92 @@
+package org.djvudroid.codec;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class PageInfoScannerTest
+{
+    @Test
+    public void scansSinglePageDocuments() throws IOException
+    {
+        final PageInfo[] pageInfos = scan(Fixtures.getFile(Fixtures.SINGLE));
+        assertEquals(1, pageInfos.length);
+        assertColourPage(pageInfos[0]);
+    }
+
+    @Test
+    public void scansEveryPageOfBundledDocuments() throws IOException
+    {
+        final PageInfo[] pageInfos = scan(Fixtures.getFile(Fixtures.BUNDLED));
+        assertEquals(2, pageInfos.length);
+        assertColourPage(pageInfos[0]);
+        assertRotatedMaskPage(pageInfos[1]);
+    }
+
+    @Test
+    public void scansVersion0Directories() throws IOException
+    {
+        final PageInfo[] pageInfos = scan(Fixtures.getFile(Fixtures.BUNDLED_V0));
+        assertEquals(2, pageInfos.length);
+        assertColourPage(pageInfos[0]);
+        assertRotatedMaskPage(pageInfos[1]);
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotDjvu() throws IOException
+    {
+        final byte[] text = "AT&TFORM but nothing a DjVu file would have".getBytes("US-ASCII");
+        assertNull(scan(Fixtures.write(text, text.length)));
+    }
+
+    @Test
+    public void rejectsTruncatedDirectories() throws IOException
+    {
+        assertNull(scan(Fixtures.write(Fixtures.read(Fixtures.BUNDLED), 40)));
+    }
+
+    @Test
+    public void rejectsPagesCutBeforeTheirInfo() throws IOException
+    {
+        // the second page's FORM header starts at 6616
+        assertNull(scan(Fixtures.write(Fixtures.read(Fixtures.BUNDLED), 6620)));
+    }
+
+    private static void assertColourPage(PageInfo pageInfo)
+    {
+        assertEquals(522, pageInfo.getWidth());
+        assertEquals(24, pageInfo.getHeight());
+        assertEquals(100, pageInfo.getDpi());
+        assertEquals(0, pageInfo.getRotation());
+        assertFalse(pageInfo.isBitonal());
+        assertEquals(522 / 24.0f, pageInfo.getAspectRatio(), 0.0001f);
+    }
+
+    private static void assertRotatedMaskPage(PageInfo pageInfo)
+    {
+        // the size is as stored, only the aspect ratio is turned
+        assertEquals(522, pageInfo.getWidth());
+        assertEquals(24, pageInfo.getHeight());
+        assertEquals(300, pageInfo.getDpi());
+        assertEquals(90, pageInfo.getRotation());
+        assertTrue(pageInfo.isBitonal());
+        assertEquals(24 / 522.0f, pageInfo.getAspectRatio(), 0.0001f);
+    }
+
+    private static PageInfo[] scan(File file) throws IOException
+    {
+        final FileChannel channel = Fixtures.open(file);
+        try
+        {
+            return PageInfoScanner.scan(channel);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.djvudroid.codec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Only the buffer half, bitmaps need a device.
+ */
+public class RenderPoolTest
+{
+    private static final int MAX_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    private RenderPool renderPool;
+
+    @Before
+    public void setUp()
+    {
+        renderPool = new RenderPool();
+    }
+
+    @Test
+    public void buffersComeInPowerOfTwoBuckets()
+    {
+        assertBuffer(renderPool.obtainBuffer(100), 4096, 100);
+        assertBuffer(renderPool.obtainBuffer(4096), 4096, 4096);
+        assertBuffer(renderPool.obtainBuffer(5000), 8192, 5000);
+    }
+
+    @Test
+    public void recycledBufferIsReusedForItsBucket()
+    {
+        final ByteBuffer buffer = renderPool.obtainBuffer(5000);
+        buffer.position(123);
+        renderPool.recycleBuffer(buffer);
+        assertNotSame(buffer, renderPool.obtainBuffer(100));
+        final ByteBuffer reused = renderPool.obtainBuffer(6000);
+        assertSame(buffer, reused);
+        assertBuffer(reused, 8192, 6000);
+        assertNotSame(buffer, renderPool.obtainBuffer(6000));
+    }
+
+    @Test
+    public void buffersOverTheBudgetAreDropped()
+    {
+        final ByteBuffer first = renderPool.obtainBuffer(MAX_BUFFER_BYTES);
+        final ByteBuffer second = renderPool.obtainBuffer(MAX_BUFFER_BYTES);
+        renderPool.recycleBuffer(first);
+        renderPool.recycleBuffer(second);
+        assertSame(first, renderPool.obtainBuffer(MAX_BUFFER_BYTES));
+        assertNotSame(second, renderPool.obtainBuffer(MAX_BUFFER_BYTES));
+    }
+
+    @Test
+    public void clearDropsPooledBuffers()
+    {
+        final ByteBuffer buffer = renderPool.obtainBuffer(100);
+        renderPool.recycleBuffer(buffer);
+        renderPool.clear();
+        assertNotSame(buffer, renderPool.obtainBuffer(100));
+    }
+
+    private static void assertBuffer(ByteBuffer buffer, int capacity, int limit)
+    {
+        assertTrue(buffer.isDirect());
+        assertEquals(capacity, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(limit, buffer.limit());
+    }
+}
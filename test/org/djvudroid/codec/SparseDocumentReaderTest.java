@@ -0,0 +1,149 @@
+package org.djvudroid.codec;
+
+import com.lizardtech.djvu.CachedInputStream;
+import com.lizardtech.djvu.DjVmDir;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class SparseDocumentReaderTest
+{
+    @Test
+    public void ignoresSinglePageDocuments() throws IOException
+    {
+        assertNull(read(Fixtures.SINGLE));
+    }
+
+    @Test
+    public void ignoresFilesThatAreNotDjvu() throws IOException
+    {
+        final byte[] text = "AT&T is not enough to make a DjVu file".getBytes("US-ASCII");
+        final FileChannel channel = Fixtures.open(Fixtures.write(text, text.length));
+        try
+        {
+            assertNull(SparseDocumentReader.read(channel));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void mapsComponentsToTheirBundledRanges() throws IOException
+    {
+        final SparseDocumentReader reader = read(Fixtures.BUNDLED);
+        assertArrayEquals(new int[]{112, 6492}, reader.getComponentRange("p0001.djvu"));
+        assertArrayEquals(new int[]{6604, 12}, reader.getComponentRange("shared.djvi"));
+        assertArrayEquals(new int[]{6616, 4762}, reader.getComponentRange("p0002.djvu"));
+        assertNull(reader.getComponentRange("p0003.djvu"));
+    }
+
+    @Test
+    public void mapsComponentsOfVersion0Directories() throws IOException
+    {
+        final SparseDocumentReader reader = read(Fixtures.BUNDLED_V0);
+        assertArrayEquals(new int[]{110, 6492}, reader.getComponentRange("p0001.djvu"));
+        assertArrayEquals(new int[]{6602, 12}, reader.getComponentRange("shared.djvi"));
+        assertArrayEquals(new int[]{6614, 4762}, reader.getComponentRange("p0002.djvu"));
+    }
+
+    @Test
+    public void componentRangesAreWholeForms() throws IOException
+    {
+        final byte[] document = Fixtures.read(Fixtures.BUNDLED);
+        final SparseDocumentReader reader = read(Fixtures.BUNDLED);
+        for (String id : new String[]{"p0001.djvu", "shared.djvi", "p0002.djvu"})
+        {
+            final int[] range = reader.getComponentRange(id);
+            final ByteBuffer component = ByteBuffer.wrap(document, range[0], range[1]).slice();
+            assertEquals(id, "FORM", tag(component, 0));
+            assertEquals(id, range[1], 8 + component.getInt(4));
+        }
+    }
+
+    @Test
+    public void rewritesTheDirectoryAsIndirect() throws IOException
+    {
+        assertIndirectHead(Fixtures.BUNDLED, 1);
+    }
+
+    @Test
+    public void rewritesVersion0DirectoriesAsIndirect() throws IOException
+    {
+        assertIndirectHead(Fixtures.BUNDLED_V0, 0);
+    }
+
+    private static void assertIndirectHead(String name, int version) throws IOException
+    {
+        final ByteBuffer head = read(name).getIndirectHead();
+        assertEquals("AT&T", tag(head, 0));
+        assertEquals("FORM", tag(head, 4));
+        assertEquals(head.remaining() - 12, head.getInt(8));
+        assertEquals("DJVM", tag(head, 12));
+        assertEquals("DIRM", tag(head, 16));
+        final int dirmSize = head.getInt(20);
+        assertEquals(version, head.get(24));
+
+        final byte[] dirm = getBytes(head, 24, dirmSize);
+        final DjVmDir dir = new DjVmDir();
+        dir.decode(new CachedInputStream().init(new ByteArrayInputStream(dirm)));
+        assertFalse(dir.is_bundled());
+        assertEquals(3, dir.get_files_num());
+        assertEquals(2, dir.get_pages_num());
+        assertEquals("p0001.djvu", dir.page_to_file(0).get_load_name());
+        assertEquals("shared.djvi", ((DjVmDir.File) dir.get_files_list().get(1)).get_load_name());
+        assertEquals("p0002.djvu", dir.page_to_file(1).get_load_name());
+
+        // the outline follows the padded directory unchanged
+        final int navmOffset = 24 + dirmSize + (dirmSize & 1);
+        assertArrayEquals(getBundledNavm(name), getBytes(head, navmOffset, head.remaining() - navmOffset));
+    }
+
+    private static byte[] getBundledNavm(String name) throws IOException
+    {
+        final ByteBuffer document = ByteBuffer.wrap(Fixtures.read(name));
+        final int dirmSize = document.getInt(20);
+        final int navmOffset = 24 + dirmSize + (dirmSize & 1);
+        assertEquals("NAVM", tag(document, navmOffset));
+        final int navmSize = document.getInt(navmOffset + 4);
+        return getBytes(document, navmOffset, 8 + navmSize + (navmSize & 1));
+    }
+
+    private static SparseDocumentReader read(String name) throws IOException
+    {
+        final FileChannel channel = Fixtures.open(name);
+        try
+        {
+            return SparseDocumentReader.read(channel);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int offset, int length)
+    {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return bytes;
+    }
+
+    private static String tag(ByteBuffer buffer, int offset)
+    {
+        final StringBuilder tag = new StringBuilder();
+        for (int i = 0; i < 4; i++)
+        {
+            tag.append((char) buffer.get(offset + i));
+        }
+        return tag.toString();
+    }
+}
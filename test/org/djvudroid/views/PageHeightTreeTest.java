@@ -0,0 +1,115 @@
+package org.djvudroid.views;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PageHeightTreeTest
+{
+    private static final double WIDTH = 480;
+
+    private PageHeightTree tree;
+
+    @Before
+    public void setUp()
+    {
+        tree = new PageHeightTree();
+    }
+
+    @Test
+    public void emptyDocumentHasNoHeight()
+    {
+        tree.setPageCount(0, 1.0f);
+        assertEquals(0, tree.getPageTop(0, WIDTH));
+        assertEquals(0, tree.getPageAt(100, WIDTH));
+    }
+
+    @Test
+    public void pagesStartWithTheSameAspectRatio()
+    {
+        tree.setPageCount(5, 0.75f);
+        for (int i = 0; i <= 5; i++)
+        {
+            assertEquals(i * 640, tree.getPageTop(i, WIDTH));
+        }
+        assertEquals(0.75f, tree.getAspectRatio(4), 0);
+    }
+
+    @Test
+    public void aspectRatioChangeMovesThePagesBelow()
+    {
+        tree.setPageCount(4, 0.75f);
+        assertTrue(tree.setAspectRatio(1, 1.5f));
+        assertFalse(tree.setAspectRatio(1, 1.5f));
+        assertEquals(640, tree.getPageTop(1, WIDTH));
+        assertEquals(960, tree.getPageTop(2, WIDTH));
+        assertEquals(2240, tree.getPageTop(4, WIDTH));
+    }
+
+    @Test
+    public void pointsOutsideTheDocumentFindTheFirstAndLastPages()
+    {
+        tree.setPageCount(3, 1.0f);
+        assertEquals(0, tree.getPageAt(-50, WIDTH));
+        assertEquals(2, tree.getPageAt(1440, WIDTH));
+        assertEquals(2, tree.getPageAt(100000, WIDTH));
+    }
+
+    @Test
+    public void matchesSummingEveryPage()
+    {
+        final Random random = new Random(42);
+        for (int pageCount : new int[]{1, 2, 7, 64, 100, 1000})
+        {
+            final float[] aspectRatios = new float[pageCount];
+            tree.setPageCount(pageCount, 0.7f);
+            Arrays.fill(aspectRatios, 0.7f);
+            for (int change = 0; change < pageCount; change++)
+            {
+                final int pageIndex = random.nextInt(pageCount);
+                aspectRatios[pageIndex] = 0.2f + random.nextFloat() * 3;
+                tree.setAspectRatio(pageIndex, aspectRatios[pageIndex]);
+            }
+            for (double width : new double[]{WIDTH, 317.5, 2900})
+            {
+                assertMatchesSums(aspectRatios, width);
+            }
+        }
+    }
+
+    private void assertMatchesSums(float[] aspectRatios, double width)
+    {
+        final int[] tops = new int[aspectRatios.length + 1];
+        double height = 0;
+        for (int i = 0; i < aspectRatios.length; i++)
+        {
+            height += 1.0 / aspectRatios[i];
+            tops[i + 1] = (int) Math.round(height * width);
+        }
+        for (int i = 0; i < tops.length; i++)
+        {
+            // rounding the same sum added up in another order may be a pixel off
+            assertEquals("top of " + i, tops[i], tree.getPageTop(i, width), 1);
+        }
+        // every pixel row on and around each page edge lands on the page that is laid out there
+        for (int i = 0; i < aspectRatios.length; i++)
+        {
+            final int top = tree.getPageTop(i, width);
+            final int bottom = tree.getPageTop(i + 1, width);
+            for (int y : new int[]{top - 1, top, top + 1, (top + bottom) / 2, bottom - 1, bottom})
+            {
+                if (y < 0 || y >= tree.getPageTop(aspectRatios.length, width))
+                {
+                    continue;
+                }
+                final int pageIndex = tree.getPageAt(y, width);
+                assertTrue("page at " + y, tree.getPageTop(pageIndex, width) <= y);
+                assertTrue("page at " + y, tree.getPageTop(pageIndex + 1, width) > y);
+            }
+        }
+    }
+}